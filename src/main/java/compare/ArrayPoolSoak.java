@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.epics.pva.data.PVAStructure;
+import org.epics.vtype.VType;
+import org.phoebus.pv.npva.ArrayPool;
+import org.phoebus.pv.npva.PVAStructureHelper;
+import org.phoebus.pv.npva.PVNameHelper;
+
+/** Soak test of the {@link ArrayPool}
+ *
+ *  <p>Decodes large synthetic images or waveforms for some time.
+ *  Like a channel whose PV listener released the value right away,
+ *  each value is held until the next value has been decoded,
+ *  and only then returned to the pool.
+ *  Runs one JVM without and one JVM with the pool,
+ *  since the pool is configured when the class is loaded,
+ *  and compares the garbage collections.
+ *
+ *  <p>Options:
+ *  <pre>
+ *  -waveform            Decode 1M element waveforms instead of 4096x4096 images
+ *  -seconds 30          Duration of each run
+ *  -pool 268435456      Pool size in bytes for the second run
+ *  </pre>
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class ArrayPoolSoak
+{
+    /** Decode for some time with the pool set in the system properties, print result line */
+    private static void runOnce(final boolean waveform, final long seconds) throws Exception
+    {
+        // Binned image or copied range of waveform both need a new 8MB array per update
+        final PVAStructure data;
+        final PVNameHelper name;
+        if (waveform)
+        {
+            data = SyntheticData.createDoubleArray(1000000);
+            name = PVNameHelper.forName("synthetic?range=0:999999");
+        }
+        else
+        {
+            data = SyntheticData.createUShortImage(4096, 4096);
+            name = PVNameHelper.forName("synthetic?bin=2");
+        }
+
+        // Warm up, then take GC counters as baseline
+        ArrayPool.Lease current = null;
+        for (int i=0; i<20; ++i)
+            current = next(current, PVAStructureHelper.getVType(data, name));
+        final long gc_count = getGCCount(), gc_millis = getGCMillis();
+
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final long start = System.nanoTime();
+        long updates = 0;
+        while (System.nanoTime() < end)
+        {
+            current = next(current, PVAStructureHelper.getVType(data, name));
+            ++updates;
+        }
+        if (current != null)
+            current.release();
+        final double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.format("%10s %10.1f %8d %8d %10d %10d\n",
+                          ArrayPool.isEnabled() ? "pool" : "no pool",
+                          updates / secs,
+                          getGCCount() - gc_count,
+                          getGCMillis() - gc_millis,
+                          ArrayPool.getHits(),
+                          ArrayPool.getMisses());
+    }
+
+    /** @param previous Lease of the previous value, may be <code>null</code>
+     *  @param value Newly decoded value
+     *  @return Lease of the new value, may be <code>null</code>
+     */
+    private static ArrayPool.Lease next(final ArrayPool.Lease previous, final VType value)
+    {
+        final ArrayPool.Lease lease = ArrayPool.lease(value);
+        if (previous != null)
+            previous.release();
+        return lease;
+    }
+
+    private static long getGCCount()
+    {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private static long getGCMillis()
+    {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        boolean waveform = false, once = false;
+        long seconds = 30, pool = 256L*1024*1024;
+        for (int i=0; i<args.length; ++i)
+        {
+            final String opt = args[i];
+            if (opt.equals("-once"))
+                once = true;
+            else if (opt.equals("-waveform"))
+                waveform = true;
+            else if (i+1 >= args.length)
+                throw new Exception("Missing value for " + opt);
+            else if (opt.equals("-seconds"))
+                seconds = Long.parseLong(args[++i]);
+            else if (opt.equals("-pool"))
+                pool = Long.parseLong(args[++i]);
+            else
+                throw new Exception("Unknown option " + opt);
+        }
+
+        if (once)
+        {
+            runOnce(waveform, seconds);
+            System.exit(0);
+        }
+
+        System.out.println((waveform ? "1M waveform, range=0:999999" : "4096x4096 image, bin=2") + ", " + seconds + " seconds");
+        System.out.println("      Pool  Updates/s      GCs  GC [ms]       Hits     Misses");
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (long bytes : new long[] { 0, pool })
+        {
+            final List<String> command = new ArrayList<>(List.of(java,
+                                                                 "-cp", System.getProperty("java.class.path"),
+                                                                 "-Dorg.phoebus.pv.npva.array_pool_bytes=" + bytes,
+                                                                 ArrayPoolSoak.class.getName(),
+                                                                 "-once",
+                                                                 "-seconds", Long.toString(seconds)));
+            if (waveform)
+                command.add("-waveform");
+            final Process process = new ProcessBuilder(command)
+                                    .redirectErrorStream(true)
+                                    .start();
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream())))
+            {
+                String line;
+                while ((line = output.readLine()) != null)
+                    System.out.println(line);
+            }
+            process.waitFor();
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Callable;
+
+/** Minimal benchmark harness
+ *
+ *  <p>Runs an operation for a warm-up period, then measures
+ *  throughput and bytes allocated per operation on the calling thread.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class Benchmark
+{
+    /** Warm-up and measurement periods in seconds, can be set via system properties */
+    private static final long WARMUP_MS = 1000 * Long.getLong("benchmark.warmup", 2),
+                              MEASURE_MS = 1000 * Long.getLong("benchmark.measure", 3);
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /** Result of the operation, prevents dead code elimination */
+    private static volatile int sink;
+
+    /** Result of a benchmark */
+    public static class Result
+    {
+        /** Operations per second */
+        public final double ops_per_sec;
+
+        /** Bytes allocated per operation */
+        public final double bytes_per_op;
+
+        Result(final double ops_per_sec, final double bytes_per_op)
+        {
+            this.ops_per_sec = ops_per_sec;
+            this.bytes_per_op = bytes_per_op;
+        }
+    }
+
+    private static long loop(final Callable<?> operation, final long millis) throws Exception
+    {
+        final long end = System.currentTimeMillis() + millis;
+        long count = 0;
+        int hash = 0;
+        do
+        {   // Check time every 100 operations
+            for (int i=0; i<100; ++i)
+                hash += System.identityHashCode(operation.call());
+            count += 100;
+        }
+        while (System.currentTimeMillis() < end);
+        sink = hash;
+        return count;
+    }
+
+    /** @param title Title to print
+     *  @param operation Operation to benchmark
+     *  @return {@link Result}
+     *  @throws Exception on error
+     */
+    public static Result run(final String title, final Callable<?> operation) throws Exception
+    {
+        loop(operation, WARMUP_MS);
+
+        final long thread = Thread.currentThread().getId();
+        final long bytes = threads.getThreadAllocatedBytes(thread);
+        final long start = System.nanoTime();
+        final long count = loop(operation, MEASURE_MS);
+        final long nanos = System.nanoTime() - start;
+        final double bytes_per_op = (threads.getThreadAllocatedBytes(thread) - bytes) / (double) count;
+        final double ops_per_sec = count * 1e9 / nanos;
+        System.out.format("%-40s %15.0f ops/s %12.1f bytes/op\n", title, ops_per_sec, bytes_per_op);
+        return new Result(ops_per_sec, bytes_per_op);
+    }
+}
@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.epics.vtype.VType;
+import org.phoebus.pv.npva.PVA_PV;
+
+/** Scaling of {@link PVA_PV} with the number of PVAClients
+ *
+ *  <p>Runs one JVM per client count 1..N,
+ *  since the client pool is configured when the PVA_Context is created.
+ *  Each run creates the channels, measures the time until
+ *  all received a first value, then counts updates.
+ *
+ *  <p>Options:
+ *  <pre>
+ *  -clients 4           Maximum number of clients
+ *  -pattern sim:%d      PV name pattern, formatted with channel index
+ *  -channels 1000       Number of channels
+ *  -seconds 10          Duration of the update phase
+ *  </pre>
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class ClientScaling
+{
+    /** Channels that have not received a value */
+    private static CountDownLatch connected;
+
+    /** Values received after the first one */
+    private static final AtomicLong updates = new AtomicLong();
+
+    /** PV that counts received values
+     *
+     *  <p>Values may arrive while the PVA_PV constructor is still running,
+     *  so this class only uses static counters
+     *  and a flag that is <code>false</code> by default.
+     */
+    private static class CountingPV extends PVA_PV
+    {
+        private volatile boolean got_value;
+
+        CountingPV(final String name) throws Exception
+        {
+            super("pva://" + name, name);
+        }
+
+        @Override
+        protected void notifyListenersOfValue(final VType value)
+        {
+            super.notifyListenersOfValue(value);
+            if (! got_value)
+            {
+                got_value = true;
+                connected.countDown();
+            }
+            else
+                updates.incrementAndGet();
+        }
+
+        void dispose()
+        {
+            close();
+        }
+    }
+
+    /** Measure for the client count set in the system properties, print result line */
+    private static void runOnce(final String pattern, final int channels, final long seconds) throws Exception
+    {
+        connected = new CountDownLatch(channels);
+        final List<CountingPV> pvs = new ArrayList<>(channels);
+
+        long start = System.nanoTime();
+        for (int i=0; i<channels; ++i)
+            pvs.add(new CountingPV(String.format(pattern, i)));
+        final boolean all = connected.await(60, TimeUnit.SECONDS);
+        final double connect_secs = (System.nanoTime() - start) / 1e9;
+
+        updates.set(0);
+        start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        final double update_secs = (System.nanoTime() - start) / 1e9;
+        final long received = updates.get();
+
+        for (CountingPV pv : pvs)
+            pv.dispose();
+
+        System.out.format("%7s %10.0f %10.0f %s\n",
+                          System.getProperty("org.phoebus.pv.npva.clients", "1"),
+                          (channels - connected.getCount()) / connect_secs,
+                          received / update_secs,
+                          all ? "" : ("(" + connected.getCount() + " not connected)"));
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int clients = 4, channels = 1000;
+        String pattern = "sim:%d";
+        long seconds = 10;
+        boolean once = false;
+        for (int i=0; i<args.length; ++i)
+        {
+            final String opt = args[i];
+            if (opt.equals("-once"))
+                once = true;
+            else if (i+1 >= args.length)
+                throw new Exception("Missing value for " + opt);
+            else if (opt.equals("-clients"))
+                clients = Integer.parseInt(args[++i]);
+            else if (opt.equals("-pattern"))
+                pattern = args[++i];
+            else if (opt.equals("-channels"))
+                channels = Integer.parseInt(args[++i]);
+            else if (opt.equals("-seconds"))
+                seconds = Long.parseLong(args[++i]);
+            else
+                throw new Exception("Unknown option " + opt);
+        }
+
+        if (once)
+        {
+            runOnce(pattern, channels, seconds);
+            System.exit(0);
+        }
+
+        System.out.println(channels + " channels '" + pattern + "', " + seconds + " seconds");
+        System.out.println("Clients  Connect/s  Updates/s");
+        final String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        for (int count=1; count<=clients; ++count)
+        {
+            final Process process = new ProcessBuilder(java,
+                                                       "-cp", System.getProperty("java.class.path"),
+                                                       "-Dorg.phoebus.pv.npva.clients=" + count,
+                                                       ClientScaling.class.getName(),
+                                                       "-once",
+                                                       "-pattern", pattern,
+                                                       "-channels", Integer.toString(channels),
+                                                       "-seconds", Long.toString(seconds))
+                                    .redirectErrorStream(true)
+                                    .start();
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream())))
+            {
+                String line;
+                while ((line = output.readLine()) != null)
+                    System.out.println(line);
+            }
+            process.waitFor();
+        }
+    }
+}
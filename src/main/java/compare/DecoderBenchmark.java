@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.util.BitSet;
+
+import org.epics.pva.data.PVAByteArray;
+import org.epics.pva.data.PVAData;
+import org.epics.pva.data.PVADouble;
+import org.epics.pva.data.PVADoubleArray;
+import org.epics.pva.data.PVAShortArray;
+import org.epics.pva.data.PVAStructure;
+import org.epics.util.array.ListNumber;
+import org.epics.vtype.VImage;
+import org.epics.vtype.VType;
+import org.phoebus.pv.npva.ArrayPool;
+import org.phoebus.pv.npva.DecodePlan;
+import org.phoebus.pv.npva.Decoders;
+import org.phoebus.pv.npva.ImageConverter;
+import org.phoebus.pv.npva.ImageDecoder;
+import org.phoebus.pv.npva.ImageStatistics;
+import org.phoebus.pv.npva.PVAStructureHelper;
+import org.phoebus.pv.npva.PVNameHelper;
+
+/** Benchmark of the decoders
+ *
+ *  <p>Decodes synthetic data, no IOC required,
+ *  to catch decoder regressions.
+ *  Prints throughput and bytes allocated per decode.
+ *
+ *  <p>Pass names of benchmarks to run, for example "scalar image",
+ *  or no argument to run all.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class DecoderBenchmark
+{
+    private static boolean selected(final String[] args, final String name)
+    {
+        if (args.length == 0)
+            return true;
+        for (String arg : args)
+            if (arg.equals(name))
+                return true;
+        return false;
+    }
+
+    /** @param struct Structure
+     *  @param value Field that holds the value
+     *  @return Changes of a typical monitor update: Only value and time stamp
+     */
+    private static BitSet valueAndTime(final PVAStructure struct, final PVAData value)
+    {
+        final BitSet changes = new BitSet();
+        changes.set(struct.getIndex(value));
+        changes.set(struct.getIndex(struct.get("timeStamp")));
+        return changes;
+    }
+
+    /** @param value Decoded value that is no longer used
+     *  @return Value
+     */
+    private static VType release(final VType value)
+    {
+        final ArrayPool.Lease lease = ArrayPool.lease(value);
+        if (lease != null)
+            lease.release();
+        return value;
+    }
+
+    /** Scalar conversion as done by image viewers: One pixel at a time, via ListNumber */
+    private static int[] perPixelARGB(final VImage image, final int[] argb)
+    {
+        final ListNumber data = image.getData();
+        final int size = image.getWidth() * image.getHeight();
+        for (int i=0; i<size; ++i)
+        {
+            final int r = (int) data.getDouble(3*i) & 0xFF,
+                      g = (int) data.getDouble(3*i+1) & 0xFF,
+                      b = (int) data.getDouble(3*i+2) & 0xFF;
+            argb[i] = 0xFF000000 | r << 16 | g << 8 | b;
+        }
+        return argb;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final PVNameHelper name = PVNameHelper.forName("synthetic");
+
+        if (selected(args, "scalar"))
+            for (String type : new String[] { "double", "float", "long", "ulong", "int", "uint", "short", "ushort", "byte", "ubyte" })
+            {
+                final PVAStructure scalar = SyntheticData.createScalar(type);
+                Benchmark.run("getVType NTScalar " + type, () -> PVAStructureHelper.getVType(scalar, name));
+                // Subscription: Plan is compiled once, then decodes each update
+                final DecodePlan plan = DecodePlan.compile(scalar, name);
+                final BitSet changes = valueAndTime(scalar, scalar.get("value"));
+                Benchmark.run("DecodePlan.decode NTScalar " + type, () -> plan.decode(changes));
+            }
+
+        if (selected(args, "decoders"))
+        {
+            final PVAStructure scalar = SyntheticData.createScalar("double");
+            final PVADouble value = scalar.get("value");
+            Benchmark.run("Decoders.decodeDouble", () -> Decoders.decodeDouble(scalar, value));
+            Benchmark.run("Decoders.decodeNumber", () -> Decoders.decodeNumber(scalar, value));
+
+            final PVAStructure array = SyntheticData.createDoubleArray(1000);
+            final PVADoubleArray values = array.get("value");
+            Benchmark.run("Decoders.decodeDoubleArray 1000", () -> Decoders.decodeDoubleArray(array, values));
+
+            final PVAStructure enumerated = SyntheticData.createEnum();
+            Benchmark.run("Decoders.decodeEnum", () -> Decoders.decodeEnum(enumerated));
+        }
+
+        if (selected(args, "alarm"))
+        {
+            // Common case is a recurring alarm, which should not allocate anything
+            final PVAStructure no_alarm = new PVAStructure("", "struct", SyntheticData.createAlarm());
+            final PVAStructure major = new PVAStructure("", "struct", SyntheticData.createAlarm(2, 3, "HIHI"));
+            final Benchmark.Result none = Benchmark.run("Decoders.decodeAlarm NO_ALARM", () -> Decoders.decodeAlarm(no_alarm));
+            final Benchmark.Result hihi = Benchmark.run("Decoders.decodeAlarm MAJOR HIHI", () -> Decoders.decodeAlarm(major));
+            if (none.bytes_per_op >= 1.0  ||  hihi.bytes_per_op >= 1.0)
+                System.out.println("ERROR: Alarm decoding allocates memory");
+        }
+
+        if (selected(args, "enum"))
+        {
+            final PVAStructure enumerated = SyntheticData.createEnum();
+            Benchmark.run("getVType NTEnum", () -> PVAStructureHelper.getVType(enumerated, name));
+            final DecodePlan plan = DecodePlan.compile(enumerated, name);
+            // Only the index changes, not the choices
+            final PVAStructure section = enumerated.get("value");
+            final BitSet changes = valueAndTime(enumerated, section.get("index"));
+            Benchmark.run("DecodePlan.decode NTEnum", () -> plan.decode(changes));
+        }
+
+        if (selected(args, "array"))
+            for (int size : new int[] { 10, 1000, 100000, 1000000 })
+            {
+                final PVAStructure array = SyntheticData.createDoubleArray(size);
+                Benchmark.run("getVType NTScalarArray " + size, () -> PVAStructureHelper.getVType(array, name));
+                final DecodePlan plan = DecodePlan.compile(array, name);
+                final BitSet changes = valueAndTime(array, array.get("value"));
+                Benchmark.run("DecodePlan.decode NTScalarArray " + size, () -> plan.decode(changes));
+            }
+
+        if (selected(args, "decimate"))
+        {
+            // Min/max decimation of 1M points for a 1000 pixel plot
+            final PVAStructure array = SyntheticData.createDoubleArray(1000000);
+            final PVNameHelper decimated = PVNameHelper.forName("synthetic?decimate=2000");
+            final PVNameHelper range = PVNameHelper.forName("synthetic?range=0:999");
+            Benchmark.run("getVType 1M decimate=2000", () -> PVAStructureHelper.getVType(array, decimated));
+            Benchmark.run("getVType 1M range=0:999", () -> PVAStructureHelper.getVType(array, range));
+        }
+
+        if (selected(args, "table"))
+            for (int rows : new int[] { 10, 10000 })
+            {
+                final PVAStructure table = SyntheticData.createTable(rows);
+                Benchmark.run("getVType NTTable " + rows, () -> PVAStructureHelper.getVType(table, name));
+            }
+
+        if (selected(args, "image"))
+            for (int size : new int[] { 512, 2048 })
+            {
+                final PVAStructure image = SyntheticData.createUShortImage(size, size);
+                Benchmark.run("ImageDecoder.decode " + size + "x" + size, () -> ImageDecoder.decode(image));
+            }
+
+        if (selected(args, "stats"))
+        {
+            // Auto-contrast of a 2k x 2k 16 bit detector frame
+            final PVAStructure image = SyntheticData.createImage(new PVAShortArray("", true, SyntheticData.createDetectorPixels(2048, 2048)), 2048, 2048);
+            Benchmark.run("getVType 2048x2048", () -> PVAStructureHelper.getVType(image, name));
+            Benchmark.run("getVType 2048x2048 + stats 4096", () -> ImageStatistics.compute((VImage) PVAStructureHelper.getVType(image, name), 4096));
+        }
+
+        if (selected(args, "argb"))
+        {
+            // 2k x 2k color frames, converted for display.
+            // Run with -Dorg.phoebus.pv.npva.image_parallel_pixels=0 to compare single-threaded conversion
+            final int size = 2048;
+            final VImage rgb1 = (VImage) ImageDecoder.decode(SyntheticData.createColorImage(new PVAByteArray("", true, new byte[3*size*size]), 2, 3, size, size));
+            final VImage rgb3 = (VImage) ImageDecoder.decode(SyntheticData.createColorImage(new PVAByteArray("", true, new byte[3*size*size]), 4, size, size, 3));
+            final VImage yuv422 = (VImage) ImageDecoder.decode(SyntheticData.createColorImage(new PVAByteArray("", true, new byte[2*size*size]), 7, size, size));
+            final int[] buffer = new int[size*size];
+            Benchmark.run("RGB1 to ARGB per pixel", () -> perPixelARGB(rgb1, buffer));
+            Benchmark.run("ImageConverter RGB1", () -> ImageConverter.toARGB(rgb1, buffer));
+            Benchmark.run("ImageConverter RGB3", () -> ImageConverter.toARGB(rgb3, buffer));
+            Benchmark.run("ImageConverter YUV422", () -> ImageConverter.toARGB(yuv422, buffer));
+        }
+
+        if (selected(args, "codec"))
+            for (String codec : new String[] { "lz4", "bslz4", "zlib" })
+                for (int size : new int[] { 512, 2048 })
+                {
+                    // Subscription: Plan and its codec are created once, each decoded frame is released.
+                    // Run with -Dorg.phoebus.pv.npva.array_pool_bytes=268435456 to decompress into pooled arrays
+                    final PVAStructure image = SyntheticData.createCompressedImage(codec, size, size);
+                    final DecodePlan plan = DecodePlan.compile(image, name);
+                    final BitSet changes = valueAndTime(image, image.get("value"));
+                    Benchmark.run("DecodePlan.decode " + codec + " " + size + "x" + size, () -> release(plan.decode(changes)));
+                }
+
+        if (selected(args, "roi"))
+        {
+            // 4k x 4k detector shown as 512x512 thumbnail
+            final PVAStructure image = SyntheticData.createUShortImage(4096, 4096);
+            for (String options : new String[] { "roi=1024:1024:512:512", "bin=8", "stride=8", "bin=2&stride=4" })
+            {
+                final PVNameHelper processed = PVNameHelper.forName("synthetic?" + options);
+                Benchmark.run("getVType 4096x4096 " + options, () -> PVAStructureHelper.getVType(image, processed));
+            }
+        }
+    }
+}
@@ -0,0 +1,389 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.epics.pva.client.PVAChannel;
+import org.epics.pva.client.PVAClient;
+import org.epics.pvaccess.ClientFactory;
+import org.epics.pvaccess.client.Channel;
+import org.epics.pvaccess.client.Channel.ConnectionState;
+import org.epics.pvaccess.client.ChannelGet;
+import org.epics.pvaccess.client.ChannelGetRequester;
+import org.epics.pvaccess.client.ChannelProvider;
+import org.epics.pvaccess.client.ChannelProviderRegistryFactory;
+import org.epics.pvaccess.client.ChannelRequester;
+import org.epics.pvdata.copy.CreateRequest;
+import org.epics.pvdata.misc.BitSet;
+import org.epics.pvdata.pv.MessageType;
+import org.epics.pvdata.pv.PVStructure;
+import org.epics.pvdata.pv.Status;
+import org.epics.pvdata.pv.Structure;
+
+/** PVA 'get' benchmark for the original and the new client
+ *
+ *  <p>Measures three phases separately,
+ *  recording the latency of each operation:
+ *  <ol>
+ *  <li>Connect the channels
+ *  <li>'get' on the already connected channels for some time
+ *  <li>Close the channels
+ *  </ol>
+ *
+ *  <p>Replaces the earlier <code>NewGet</code> and <code>OrigGet</code> loops
+ *  which combined connect, get and close into one average rate
+ *  (~370 resp. ~90 per second).
+ *
+ *  <p>Options:
+ *  <pre>
+ *  -client new|old|both  Client to test, default: both
+ *  -pvs ramp,saw,rnd     PV names, used round-robin for the channels
+ *  -channels 3           Number of channels
+ *  -threads 1            Number of threads that connect, get and close
+ *  -seconds 10           Duration of the 'get' phase
+ *  -out result.json      File for results, default: print to stdout
+ *  </pre>
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class GetBenchmark
+{
+    private static final long TIMEOUT_MS = 5000;
+
+    /** Client under test
+     *  @param <C> Channel type
+     */
+    private interface Client<C> extends AutoCloseable
+    {
+        /** @param name Channel name
+         *  @return Connected channel
+         *  @throws Exception on error
+         */
+        C connect(String name) throws Exception;
+
+        /** @param channel Connected channel
+         *  @return Value
+         *  @throws Exception on error
+         */
+        String get(C channel) throws Exception;
+
+        /** @param channel Channel to close */
+        void close(C channel);
+    }
+
+    /** New PVAClient */
+    private static class NewClient implements Client<PVAChannel>
+    {
+        private final PVAClient client = new PVAClient();
+
+        NewClient() throws Exception
+        {
+        }
+
+        @Override
+        public PVAChannel connect(final String name) throws Exception
+        {
+            final PVAChannel channel = client.getChannel(name);
+            channel.connect().get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return channel;
+        }
+
+        @Override
+        public String get(final PVAChannel channel) throws Exception
+        {
+            return channel.read("").get(TIMEOUT_MS, TimeUnit.MILLISECONDS).get("value").toString();
+        }
+
+        @Override
+        public void close(final PVAChannel channel)
+        {
+            channel.close();
+        }
+
+        @Override
+        public void close()
+        {
+            client.close();
+        }
+    }
+
+    /** Channel of the original client, re-using one ChannelGet */
+    private static class OldChannel implements ChannelRequester, ChannelGetRequester
+    {
+        private static final PVStructure read_request = CreateRequest.create().createRequest("field()");
+
+        private final CompletableFuture<ChannelGet> connected = new CompletableFuture<>();
+        private volatile CompletableFuture<String> result;
+        private final Channel channel;
+
+        OldChannel(final ChannelProvider provider, final String name)
+        {
+            channel = provider.createChannel(name, this, ChannelProvider.PRIORITY_DEFAULT);
+        }
+
+        @Override
+        public String getRequesterName()
+        {
+            return getClass().getName();
+        }
+
+        @Override
+        public void message(final String message, final MessageType type)
+        {
+        }
+
+        @Override
+        public void channelCreated(final Status status, final Channel channel)
+        {
+            if (! status.isSuccess())
+                connected.completeExceptionally(new Exception("Cannot create " + channel.getChannelName() + ": " + status.getMessage()));
+        }
+
+        @Override
+        public void channelStateChange(final Channel channel, final ConnectionState state)
+        {
+            if (state == ConnectionState.CONNECTED)
+                channel.createChannelGet(this, read_request);
+        }
+
+        @Override
+        public void channelGetConnect(final Status status, final ChannelGet get, final Structure introspection)
+        {
+            if (status.isSuccess())
+                connected.complete(get);
+            else
+                connected.completeExceptionally(new Exception("Cannot create get: " + status.getMessage()));
+        }
+
+        @Override
+        public void getDone(final Status status, final ChannelGet get, final PVStructure data, final BitSet changed)
+        {
+            if (status.isSuccess())
+                result.complete(data.getSubField("value").toString());
+            else
+                result.completeExceptionally(new Exception("Get failed: " + status.getMessage()));
+        }
+
+        void awaitConnection() throws Exception
+        {
+            connected.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        String get() throws Exception
+        {
+            final CompletableFuture<String> pending = new CompletableFuture<>();
+            result = pending;
+            connected.get().get();
+            return pending.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+
+        void close()
+        {
+            channel.destroy();
+        }
+    }
+
+    /** Original org.epics.pvaccess client */
+    private static class OldClient implements Client<OldChannel>
+    {
+        private final ChannelProvider provider;
+
+        OldClient()
+        {
+            ClientFactory.start();
+            provider = ChannelProviderRegistryFactory.getChannelProviderRegistry().getProvider("pva");
+        }
+
+        @Override
+        public OldChannel connect(final String name) throws Exception
+        {
+            final OldChannel channel = new OldChannel(provider, name);
+            channel.awaitConnection();
+            return channel;
+        }
+
+        @Override
+        public String get(final OldChannel channel) throws Exception
+        {
+            return channel.get();
+        }
+
+        @Override
+        public void close(final OldChannel channel)
+        {
+            channel.close();
+        }
+
+        @Override
+        public void close()
+        {
+            ClientFactory.stop();
+        }
+    }
+
+    /** Latencies of one thread */
+    private static class Latencies
+    {
+        final LatencyRecorder connect = new LatencyRecorder(),
+                              get = new LatencyRecorder(),
+                              close = new LatencyRecorder();
+        int errors = 0;
+    }
+
+    /** Connect, get, close the channels of one thread
+     *  @param client Client
+     *  @param names Channel names for this thread
+     *  @param seconds Duration of 'get' phase
+     *  @return Latencies
+     *  @throws Exception on error
+     */
+    private static <C> Latencies runThread(final Client<C> client, final List<String> names, final long seconds) throws Exception
+    {
+        final Latencies latencies = new Latencies();
+
+        final List<C> channels = new ArrayList<>(names.size());
+        for (String name : names)
+        {
+            final long start = System.nanoTime();
+            channels.add(client.connect(name));
+            latencies.connect.record(System.nanoTime() - start);
+        }
+
+        final long end = System.currentTimeMillis() + seconds * 1000;
+        int i = 0;
+        while (System.currentTimeMillis() < end)
+        {
+            final C channel = channels.get(i);
+            i = (i + 1) % channels.size();
+            final long start = System.nanoTime();
+            try
+            {
+                client.get(channel);
+                latencies.get.record(System.nanoTime() - start);
+            }
+            catch (Exception ex)
+            {
+                ++latencies.errors;
+            }
+        }
+
+        for (C channel : channels)
+        {
+            final long start = System.nanoTime();
+            client.close(channel);
+            latencies.close.record(System.nanoTime() - start);
+        }
+
+        return latencies;
+    }
+
+    /** @param title Client name
+     *  @param client Client to test
+     *  @param pvs PV names
+     *  @param channel_count Number of channels
+     *  @param threads Number of threads
+     *  @param seconds Duration of 'get' phase
+     *  @return JSON for the client's result
+     *  @throws Exception on error
+     */
+    private static <C> String runClient(final String title, final Client<C> client,
+                                        final String[] pvs, final int channel_count,
+                                        final int threads, final long seconds) throws Exception
+    {
+        // Distribute channels to threads
+        final List<List<String>> names = new ArrayList<>();
+        for (int t=0; t<threads; ++t)
+            names.add(new ArrayList<>());
+        for (int c=0; c<channel_count; ++c)
+            names.get(c % threads).add(pvs[c % pvs.length]);
+
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final List<Future<Latencies>> results = new ArrayList<>();
+        for (List<String> thread_names : names)
+            if (! thread_names.isEmpty())
+                results.add(pool.submit(() -> runThread(client, thread_names, seconds)));
+
+        final Latencies total = new Latencies();
+        for (Future<Latencies> result : results)
+        {
+            final Latencies latencies = result.get();
+            total.connect.add(latencies.connect);
+            total.get.add(latencies.get);
+            total.close.add(latencies.close);
+            total.errors += latencies.errors;
+        }
+        pool.shutdown();
+        client.close();
+
+        System.out.println(title + " client, " + channel_count + " channels, " + threads + " threads:");
+        System.out.println("Connect: " + total.connect);
+        System.out.println("Get    : " + total.get + ", " + (total.get.getCount() / seconds) + " per second, " + total.errors + " errors");
+        System.out.println("Close  : " + total.close);
+
+        return "{ \"client\": \"" + title + "\"" +
+               ", \"channels\": " + channel_count +
+               ", \"threads\": " + threads +
+               ", \"seconds\": " + seconds +
+               ", \"get_errors\": " + total.errors +
+               ", \"gets_per_second\": " + (total.get.getCount() / seconds) +
+               ", \"connect\": " + total.connect.toJSON() +
+               ", \"get\": " + total.get.toJSON() +
+               ", \"close\": " + total.close.toJSON() + " }";
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        String which = "both";
+        String[] pvs = { "ramp", "saw", "rnd" };
+        int channels = 3, threads = 1;
+        long seconds = 10;
+        String out = null;
+        for (int i=0; i<args.length-1; i+=2)
+        {
+            final String opt = args[i], val = args[i+1];
+            if (opt.equals("-client"))
+                which = val;
+            else if (opt.equals("-pvs"))
+                pvs = val.split(",");
+            else if (opt.equals("-channels"))
+                channels = Integer.parseInt(val);
+            else if (opt.equals("-threads"))
+                threads = Integer.parseInt(val);
+            else if (opt.equals("-seconds"))
+                seconds = Long.parseLong(val);
+            else if (opt.equals("-out"))
+                out = val;
+            else
+                throw new Exception("Unknown option " + opt);
+        }
+
+        final List<String> results = new ArrayList<>();
+        if (which.equals("new")  ||  which.equals("both"))
+            results.add(runClient("new", new NewClient(), pvs, channels, threads, seconds));
+        if (which.equals("old")  ||  which.equals("both"))
+            results.add(runClient("old", new OldClient(), pvs, channels, threads, seconds));
+
+        final String json = "[\n  " + String.join(",\n  ", results) + "\n]\n";
+        if (out == null)
+            System.out.print(json);
+        else
+            try (PrintWriter writer = new PrintWriter(out))
+            {
+                writer.print(json);
+            }
+    }
+}
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.lang.management.ManagementFactory;
+
+import org.epics.pva.data.PVAByteArray;
+import org.epics.pva.data.PVAShortArray;
+import org.epics.pva.data.PVAStructure;
+import org.epics.util.array.CollectionNumbers;
+import org.epics.vtype.VImage;
+import org.phoebus.pv.npva.ImageDecoder;
+
+/** Check that ImageDecoder passes pixels on without copying
+ *
+ *  <p>Decodes synthetic NTNDArray frames, no IOC required.
+ *  Checks that the VImage wraps the original pixel array
+ *  and that the bytes allocated per decode are
+ *  far below the size of the frame.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class ImageZeroCopy
+{
+    private static final int WIDTH = 2048, HEIGHT = 2048, RUNS = 1000;
+
+    private static void check(final String title, final PVAStructure struct, final Object pixels) throws Exception
+    {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+
+        // Warm up
+        for (int i=0; i<RUNS; ++i)
+            ImageDecoder.decode(struct);
+
+        final long start = threads.getThreadAllocatedBytes(thread);
+        VImage image = null;
+        for (int i=0; i<RUNS; ++i)
+            image = (VImage) ImageDecoder.decode(struct);
+        final long allocated = (threads.getThreadAllocatedBytes(thread) - start) / RUNS;
+
+        final boolean same = CollectionNumbers.wrappedArray(image.getData()) == pixels;
+        System.out.println(title + ": " + image.getWidth() + " x " + image.getHeight() + " " + image.getDataType() +
+                           ", wraps received array: " + same +
+                           ", allocated per decode: " + allocated + " bytes");
+        if (! same  ||  allocated >= WIDTH * HEIGHT / 100)
+            throw new Exception(title + " copied the pixel data");
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        final byte[] bytes = new byte[WIDTH * HEIGHT];
+        check("UByte", SyntheticData.createImage(new PVAByteArray("", true, bytes), WIDTH, HEIGHT), bytes);
+
+        final short[] shorts = new short[WIDTH * HEIGHT];
+        check("UShort", SyntheticData.createImage(new PVAShortArray("", true, shorts), WIDTH, HEIGHT), shorts);
+    }
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/** Records latencies, computes percentiles
+ *
+ *  <p>Keeps all samples, so percentiles are exact.
+ *  Not thread-safe, use one recorder per thread and merge them.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class LatencyRecorder
+{
+    /** Percentiles to report */
+    public static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9, 99.99 };
+
+    private long[] samples = new long[1024];
+    private int count = 0;
+    private boolean sorted = true;
+
+    /** @param nanos Latency in nanoseconds */
+    public void record(final long nanos)
+    {
+        if (count >= samples.length)
+            samples = Arrays.copyOf(samples, samples.length * 2);
+        samples[count++] = nanos;
+        sorted = false;
+    }
+
+    /** @param other Recorder to add to this one */
+    public void add(final LatencyRecorder other)
+    {
+        if (count + other.count > samples.length)
+            samples = Arrays.copyOf(samples, Math.max(samples.length * 2, count + other.count));
+        System.arraycopy(other.samples, 0, samples, count, other.count);
+        count += other.count;
+        sorted = false;
+    }
+
+    /** @return Number of samples */
+    public int getCount()
+    {
+        return count;
+    }
+
+    private void sort()
+    {
+        if (! sorted)
+        {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+    }
+
+    /** @param percentile Percentile 0..100
+     *  @return Latency in nanoseconds at that percentile
+     */
+    public long getPercentile(final double percentile)
+    {
+        if (count <= 0)
+            return 0;
+        sort();
+        final int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return samples[Math.max(0, Math.min(count - 1, index))];
+    }
+
+    /** @return Minimum latency in nanoseconds */
+    public long getMin()
+    {
+        return getPercentile(0);
+    }
+
+    /** @return Maximum latency in nanoseconds */
+    public long getMax()
+    {
+        return getPercentile(100);
+    }
+
+    /** @return Average latency in nanoseconds */
+    public double getMean()
+    {
+        if (count <= 0)
+            return 0;
+        double sum = 0;
+        for (int i=0; i<count; ++i)
+            sum += samples[i];
+        return sum / count;
+    }
+
+    /** @return Summary in microseconds */
+    @Override
+    public String toString()
+    {
+        final StringBuilder buf = new StringBuilder();
+        buf.append(String.format("n=%d mean=%.1f min=%.1f", count, getMean() / 1e3, getMin() / 1e3));
+        for (double p : PERCENTILES)
+            buf.append(String.format(" p%s=%.1f", p, getPercentile(p) / 1e3));
+        buf.append(String.format(" max=%.1f us", getMax() / 1e3));
+        return buf.toString();
+    }
+
+    /** @return JSON object with latencies in microseconds */
+    public String toJSON()
+    {
+        final StringBuilder buf = new StringBuilder();
+        buf.append("{ \"count\": ").append(count);
+        buf.append(String.format(Locale.ROOT, ", \"mean_us\": %.3f", getMean() / 1e3));
+        buf.append(String.format(Locale.ROOT, ", \"min_us\": %.3f", getMin() / 1e3));
+        for (double p : PERCENTILES)
+            buf.append(String.format(Locale.ROOT, ", \"p%s_us\": %.3f", p, getPercentile(p) / 1e3));
+        buf.append(String.format(Locale.ROOT, ", \"max_us\": %.3f }", getMax() / 1e3));
+        return buf.toString();
+    }
+}
@@ -0,0 +1,39 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.phoebus.pv.npva.BulkRead;
+
+/** Demo of bulk read, throughput for different window sizes
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class NewBulkRead
+{
+    public static void main(String[] args) throws Exception
+    {
+        final String[] pvs = { "ramp", "saw", "rnd" };
+        final List<String> names = new ArrayList<>();
+        for (int i=0; i<3000; ++i)
+            names.add(pvs[i % pvs.length]);
+
+        for (int window : new int[] { 1, 10, 100, 1000 })
+        {
+            final long start = System.nanoTime();
+            final List<BulkRead.Result> results = BulkRead.read(names, window, 60, TimeUnit.SECONDS).get();
+            final double secs = (System.nanoTime() - start) / 1e9;
+            final long errors = results.stream().filter(result -> result.getError() != null).count();
+            System.out.format("Window %4d: %6.0f PVs per second, %d errors\n", window, names.size() / secs, errors);
+        }
+        System.out.println(BulkRead.read(List.of("ramp", "missing"), 10, 2, TimeUnit.SECONDS).get());
+    }
+}
@@ -7,6 +7,8 @@
  ******************************************************************************/
 package compare;
 
+import java.time.Duration;
+import java.time.Instant;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -14,8 +16,17 @@ import org.epics.pva.client.PVAChannel;
 import org.epics.pva.client.PVAClient;
 import org.epics.pva.data.PVAShortArray;
 import org.epics.pva.data.PVAUnion;
+import org.epics.vtype.VImage;
+import org.epics.vtype.VType;
+import org.phoebus.pv.npva.PVA_PV;
 
 /** PVA 'monitor' of Image
+ *
+ *  <p>Run with argument "pv" to monitor via {@link PVA_PV}
+ *  with <code>latest=true</code> and a slow listener.
+ *  Latency stays bounded because frames that arrive
+ *  while the listener is busy are skipped.
+ *
  *  @author Kay Kasemir
  */
 @SuppressWarnings("nls")
@@ -51,9 +62,52 @@ public class NewImageMonitor
     }
 
 
+    /** Time spent by the slow listener on each frame */
+    private static final long LISTENER_MS = 500;
+
+    private static void run_pv()
+    {
+        try
+        {
+            final PVA_PV pv = new PVA_PV("pva://IMAGE?latest=true", "IMAGE?latest=true")
+            {
+                @Override
+                protected void notifyListenersOfValue(final VType value)
+                {
+                    super.notifyListenersOfValue(value);
+                    if (! (value instanceof VImage))
+                        return;
+                    final Instant stamp = ((VImage) value).getTime().getTimestamp();
+                    if (print)
+                        System.out.println("pv: latency " + Duration.between(stamp, Instant.now()).toMillis() +
+                                           " ms, skipped " + getSkippedFrames() + " frames");
+                    try
+                    {
+                        TimeUnit.MILLISECONDS.sleep(LISTENER_MS);
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        // Ignore
+                    }
+                }
+            };
+
+            done.await();
+
+            System.out.println("Skipped " + pv.getSkippedFrames() + " frames");
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+        }
+    }
+
     public static void main(String[] args) throws InterruptedException
     {
-        new Thread(NewImageMonitor::run_pvaclient).start();
+        if (args.length > 0  &&  args[0].equals("pv"))
+            new Thread(NewImageMonitor::run_pv).start();
+        else
+            new Thread(NewImageMonitor::run_pvaclient).start();
 
         done.await();
 //        Thread.sleep(200000);
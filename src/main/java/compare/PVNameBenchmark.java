@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.phoebus.pv.npva.PVNameHelper;
+
+/** Throughput of PV name parsing
+ *
+ *  <p>Parses the names of a 'display' many times,
+ *  similar to reloading a display.
+ *  Run with <code>-Dorg.phoebus.pv.npva.name_cache_size=0</code>
+ *  to get the uncached 'before' numbers.
+ *  With <code>-threads N</code>, N threads reload the display in parallel.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class PVNameBenchmark
+{
+    private static final int NAMES = 20000, RELOADS = 50;
+
+    /** @param names Names to parse
+     *  @return Number of parsed names
+     */
+    private static long reload(final String[] names)
+    {
+        long count = 0;
+        try
+        {
+            for (int reload=0; reload<RELOADS; ++reload)
+                for (String name : names)
+                    if (PVNameHelper.forName(name).getChannel() != null)
+                        ++count;
+        }
+        catch (Exception ex)
+        {
+            ex.printStackTrace();
+        }
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int threads = 1;
+        for (int i=0; i<args.length; ++i)
+        {
+            if (args[i].equals("-threads")  &&  i+1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else
+                throw new Exception("Unknown option " + args[i]);
+        }
+
+        final String[] names = new String[NAMES];
+        for (int i=0; i<NAMES; ++i)
+            switch (i % 3)
+            {
+            case 0:
+                names[i] = "ramp" + i;
+                break;
+            case 1:
+                names[i] = "/table" + i + "/value/x";
+                break;
+            default:
+                names[i] = "image" + i + "?request=field(value)";
+            }
+
+        System.out.println(threads + " thread(s)");
+        for (int run=0; run<5; ++run)
+        {
+            final long start = System.nanoTime();
+            final AtomicLong count = new AtomicLong();
+            final Thread[] workers = new Thread[threads];
+            for (int t=0; t<threads; ++t)
+            {
+                workers[t] = new Thread(() -> count.addAndGet(reload(names)));
+                workers[t].start();
+            }
+            for (Thread worker : workers)
+                worker.join();
+            final long nanos = System.nanoTime() - start;
+            System.out.println("Run " + run + ": " + (count.get() * 1000_000_000L / nanos) + " names per second");
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/** Compression as performed by the areaDetector codec plugin
+ *
+ *  <p>Simple encoders for creating compressed synthetic frames.
+ *  The LZ4 encoder is a plain greedy matcher, so it compresses less
+ *  than the LZ4 library, but creates valid LZ4 blocks.
+ *
+ *  @author Kay Kasemir
+ */
+public class SyntheticCodec
+{
+    /** Bitshuffle block size in bytes, as used by <code>bshuf_compress_lz4</code> */
+    private static final int BSHUF_TARGET_BLOCK_SIZE = 8192;
+
+    /** @param data Data
+     *  @return zlib stream
+     */
+    public static byte[] zlib(final byte[] data)
+    {
+        final Deflater deflater = new Deflater();
+        deflater.setInput(data);
+        deflater.finish();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        final byte[] buf = new byte[64*1024];
+        while (! deflater.finished())
+            out.write(buf, 0, deflater.deflate(buf));
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    /** @param data Data
+     *  @return LZ4 block
+     */
+    public static byte[] lz4(final byte[] data)
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        lz4(data, 0, data.length, out);
+        return out.toByteArray();
+    }
+
+    /** @param data Data
+     *  @param start Start of block
+     *  @param end End of block
+     *  @param out Where LZ4 block is written
+     */
+    private static void lz4(final byte[] data, final int start, final int end, final ByteArrayOutputStream out)
+    {
+        final int[] table = new int[1 << 16];
+        Arrays.fill(table, -1);
+        // Last match must start 12 bytes before the end, last 5 bytes are literals
+        final int limit = end - 12;
+        int anchor = start, i = start;
+        while (i < limit)
+        {
+            final int sequence = getInt(data, i);
+            final int hash = (sequence * -1640531535) >>> 16;
+            final int ref = table[hash];
+            table[hash] = i;
+            if (ref < 0  ||  i - ref > 65535  ||  getInt(data, ref) != sequence)
+            {
+                ++i;
+                continue;
+            }
+            int length = 4;
+            while (i + length < end - 5  &&  data[ref + length] == data[i + length])
+                ++length;
+            writeSequence(out, data, anchor, i - anchor, i - ref, length);
+            i += length;
+            anchor = i;
+        }
+        writeSequence(out, data, anchor, end - anchor, 0, 0);
+    }
+
+    private static int getInt(final byte[] data, final int i)
+    {
+        return (data[i] & 0xFF) | (data[i+1] & 0xFF) << 8 | (data[i+2] & 0xFF) << 16 | (data[i+3] & 0xFF) << 24;
+    }
+
+    private static void writeSequence(final ByteArrayOutputStream out, final byte[] data, final int literal_start,
+                                      final int literals, final int offset, final int match)
+    {
+        final int match_code = match > 0 ? match - 4 : 0;
+        out.write(Math.min(literals, 15) << 4  |  Math.min(match_code, 15));
+        if (literals >= 15)
+            writeLength(out, literals - 15);
+        out.write(data, literal_start, literals);
+        if (match <= 0)
+            return;
+        out.write(offset & 0xFF);
+        out.write(offset >>> 8);
+        if (match_code >= 15)
+            writeLength(out, match_code - 15);
+    }
+
+    private static void writeLength(final ByteArrayOutputStream out, int length)
+    {
+        while (length >= 255)
+        {
+            out.write(255);
+            length -= 255;
+        }
+        out.write(length);
+    }
+
+    /** @param data Data
+     *  @param element_size Bytes per element
+     *  @return Bitshuffle/LZ4 data, without header
+     */
+    public static byte[] bslz4(final byte[] data, final int element_size)
+    {
+        final int elements = data.length / element_size;
+        final int block_size = Math.max(128, BSHUF_TARGET_BLOCK_SIZE / element_size / 8 * 8);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+        int i = 0;
+        while (i < elements)
+        {
+            final int count = Math.min(block_size, (elements - i) / 8 * 8);
+            if (count <= 0)
+                break;
+            final byte[] shuffled = shuffle(data, i * element_size, count, element_size);
+            final ByteArrayOutputStream block = new ByteArrayOutputStream();
+            lz4(shuffled, 0, shuffled.length, block);
+            final int size = block.size();
+            out.write(size >>> 24);
+            out.write(size >>> 16);
+            out.write(size >>> 8);
+            out.write(size);
+            out.write(block.toByteArray(), 0, size);
+            i += count;
+        }
+        // Remaining elements are copied
+        out.write(data, i * element_size, (elements - i) * element_size);
+        return out.toByteArray();
+    }
+
+    /** @return Bit k of byte j of element i moved to bit i%8 of byte i/8 in row 8*j+k */
+    private static byte[] shuffle(final byte[] data, final int start, final int count, final int element_size)
+    {
+        final int row_size = count / 8;
+        final byte[] shuffled = new byte[count * element_size];
+        for (int i=0; i<count; ++i)
+            for (int j=0; j<element_size; ++j)
+            {
+                final int value = data[start + i * element_size + j];
+                for (int k=0; k<8; ++k)
+                    if ((value & (1 << k)) != 0)
+                        shuffled[(8*j + k) * row_size + i/8] |= 1 << (i % 8);
+            }
+        return shuffled;
+    }
+}
@@ -0,0 +1,315 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package compare;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.epics.pva.data.PVAByte;
+import org.epics.pva.data.PVAByteArray;
+import org.epics.pva.data.PVAData;
+import org.epics.pva.data.PVADouble;
+import org.epics.pva.data.PVADoubleArray;
+import org.epics.pva.data.PVAFloat;
+import org.epics.pva.data.PVAFloatArray;
+import org.epics.pva.data.PVAInt;
+import org.epics.pva.data.PVAIntArray;
+import org.epics.pva.data.PVALong;
+import org.epics.pva.data.PVALongArray;
+import org.epics.pva.data.PVAShort;
+import org.epics.pva.data.PVAShortArray;
+import org.epics.pva.data.PVAString;
+import org.epics.pva.data.PVAStringArray;
+import org.epics.pva.data.PVAStructure;
+import org.epics.pva.data.PVAStructureArray;
+import org.epics.pva.data.PVAUnion;
+import org.epics.pva.data.PVAny;
+
+/** Synthetic normative type data, as received from an IOC
+ *
+ *  <p>Allows running decoder checks and benchmarks without an IOC.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class SyntheticData
+{
+    /** @return alarm_t without alarm */
+    public static PVAStructure createAlarm()
+    {
+        return createAlarm(0, 0, "NO_ALARM");
+    }
+
+    /** @param severity Severity index
+     *  @param status Status index
+     *  @param message Message
+     *  @return alarm_t
+     */
+    public static PVAStructure createAlarm(final int severity, final int status, final String message)
+    {
+        return new PVAStructure("alarm", "alarm_t",
+                                new PVAInt("severity", severity),
+                                new PVAInt("status", status),
+                                new PVAString("message", message));
+    }
+
+    /** @return time_t for 'now' */
+    public static PVAStructure createTime()
+    {
+        final long millis = System.currentTimeMillis();
+        return new PVAStructure("timeStamp", "time_t",
+                                new PVALong("secondsPastEpoch", false, millis / 1000),
+                                new PVAInt("nanoseconds", (int) (millis % 1000) * 1000000),
+                                new PVAInt("userTag", 0));
+    }
+
+    /** @return display_t with units, precision, limits */
+    public static PVAStructure createDisplay()
+    {
+        return new PVAStructure("display", "display_t",
+                                new PVADouble("limitLow", 0.0),
+                                new PVADouble("limitHigh", 10.0),
+                                new PVAString("description", "Synthetic"),
+                                new PVAString("units", "mm"),
+                                new PVAInt("precision", 3),
+                                new PVAStructure("form", "enum_t",
+                                                 new PVAInt("index", 0),
+                                                 new PVAStringArray("choices", "Default", "String", "Binary", "Decimal", "Hex", "Exponential", "Engineering")));
+    }
+
+    /** @return control_t */
+    public static PVAStructure createControl()
+    {
+        return new PVAStructure("control", "control_t",
+                                new PVADouble("limitLow", 0.0),
+                                new PVADouble("limitHigh", 10.0),
+                                new PVADouble("minStep", 0.0));
+    }
+
+    /** @return valueAlarm_t */
+    public static PVAStructure createValueAlarm()
+    {
+        return new PVAStructure("valueAlarm", "valueAlarm_t",
+                                new PVADouble("lowAlarmLimit", 1.0),
+                                new PVADouble("lowWarningLimit", 2.0),
+                                new PVADouble("highWarningLimit", 8.0),
+                                new PVADouble("highAlarmLimit", 9.0));
+    }
+
+    /** @param value 'value' field
+     *  @return NTScalar with that value
+     */
+    public static PVAStructure createScalar(final PVAData value)
+    {
+        return new PVAStructure("", "epics:nt/NTScalar:1.0",
+                                value, createAlarm(), createTime(), createDisplay(), createControl(), createValueAlarm());
+    }
+
+    /** @param type "double", "float", "long", "int", "short", "byte", or "u..." for unsigned integer types
+     *  @return NTScalar of that type
+     */
+    public static PVAStructure createScalar(final String type)
+    {
+        final boolean unsigned = type.startsWith("u");
+        switch (unsigned ? type.substring(1) : type)
+        {
+        case "double":
+            return createScalar(new PVADouble("value", 3.14));
+        case "float":
+            return createScalar(new PVAFloat("value", 3.14f));
+        case "long":
+            return createScalar(new PVALong("value", unsigned, 42L));
+        case "int":
+            return createScalar(new PVAInt("value", unsigned, 42));
+        case "short":
+            return createScalar(new PVAShort("value", unsigned, (short) 42));
+        case "byte":
+            return createScalar(new PVAByte("value", unsigned, (byte) 42));
+        default:
+            throw new IllegalArgumentException("Unknown type " + type);
+        }
+    }
+
+    /** @return NTEnum */
+    public static PVAStructure createEnum()
+    {
+        return new PVAStructure("", "epics:nt/NTEnum:1.0",
+                                new PVAStructure("value", "enum_t",
+                                                 new PVAInt("index", 1),
+                                                 new PVAStringArray("choices", "Off", "On", "Fault")),
+                                createAlarm(), createTime());
+    }
+
+    /** @param size Number of array elements
+     *  @return NTScalarArray of double
+     */
+    public static PVAStructure createDoubleArray(final int size)
+    {
+        final double[] data = new double[size];
+        for (int i=0; i<size; ++i)
+            data[i] = Math.sin(i * 0.01);
+        return new PVAStructure("", "epics:nt/NTScalarArray:1.0",
+                                new PVADoubleArray("value", data),
+                                createAlarm(), createTime(), createDisplay(), createControl());
+    }
+
+    /** @param rows Number of rows
+     *  @return NTTable with double, float, long, ulong, int, short, byte and string columns
+     */
+    public static PVAStructure createTable(final int rows)
+    {
+        final double[] x = new double[rows];
+        final float[] y = new float[rows];
+        final long[] id = new long[rows], serial = new long[rows];
+        final int[] n = new int[rows];
+        final short[] sector = new short[rows];
+        final byte[] flags = new byte[rows];
+        final String[] name = new String[rows];
+        for (int i=0; i<rows; ++i)
+        {
+            x[i] = i * 0.1;
+            y[i] = i * 0.2f;
+            id[i] = 1000000000000L + i;
+            serial[i] = -1L - i;
+            n[i] = i;
+            sector[i] = (short) (i / 100);
+            flags[i] = (byte) (i & 0x0F);
+            name[i] = "Element" + i;
+        }
+        return new PVAStructure("", "epics:nt/NTTable:1.0",
+                                new PVAStringArray("labels", "X", "Y", "ID", "Serial", "N", "Sector", "Flags", "Name"),
+                                new PVAStructure("value", "",
+                                                 new PVADoubleArray("x", x),
+                                                 new PVAFloatArray("y", y),
+                                                 new PVALongArray("id", false, id),
+                                                 new PVALongArray("serial", true, serial),
+                                                 new PVAIntArray("n", false, n),
+                                                 new PVAShortArray("sector", false, sector),
+                                                 new PVAByteArray("flags", false, flags),
+                                                 new PVAStringArray("name", name)),
+                                createAlarm(), createTime());
+    }
+
+    private static PVAStructure createDimension(final int size)
+    {
+        return new PVAStructure("", "dimension_t",
+                                new PVAInt("size", size),
+                                new PVAInt("offset", 0),
+                                new PVAInt("fullSize", size),
+                                new PVAInt("binning", 1),
+                                new PVAInt("reverse", 0));
+    }
+
+    /** @param pixels Array of pixels
+     *  @param dimensions Size of each dimension
+     *  @return NTNDArray
+     */
+    public static PVAStructure createImage(final PVAData pixels, final int... dimensions)
+    {
+        final PVAUnion value = new PVAUnion("value", "", 0, pixels);
+        return new PVAStructure("", "epics:nt/NTNDArray:1.0", value, createDimensions(dimensions), createAlarm(), createTime());
+    }
+
+    /** @param pixels Array of pixels
+     *  @param color_mode areaDetector color mode, for example 2 for RGB1 or 7 for YUV422
+     *  @param dimensions Size of each dimension
+     *  @return NTNDArray with 'colorMode' attribute
+     */
+    public static PVAStructure createColorImage(final PVAData pixels, final int color_mode, final int... dimensions)
+    {
+        final PVAUnion value = new PVAUnion("value", "", 0, pixels);
+        final PVAStructure attribute = createAttribute("colorMode", new PVAInt("", color_mode));
+        final PVAStructureArray attributes = new PVAStructureArray("attribute", createAttribute("", null), attribute);
+        return new PVAStructure("", "epics:nt/NTNDArray:1.0", value, createDimensions(dimensions), attributes, createAlarm(), createTime());
+    }
+
+    private static PVAStructure createAttribute(final String name, final PVAData value)
+    {
+        return new PVAStructure("", "epics:nt/NTAttribute:1.0",
+                                new PVAString("name", name),
+                                value == null ? new PVAny("value") : new PVAny("value", value),
+                                new PVAString("descriptor", ""),
+                                new PVAInt("sourceType", 0),
+                                new PVAString("source", ""));
+    }
+
+    private static PVAStructureArray createDimensions(final int... dimensions)
+    {
+        final PVAStructure[] dims = new PVAStructure[dimensions.length];
+        for (int i=0; i<dims.length; ++i)
+            dims[i] = createDimension(dimensions[i]);
+        return new PVAStructureArray("dimension", createDimension(0), dims);
+    }
+
+    /** @param width Image width
+     *  @param height Image height
+     *  @return Monochrome NTNDArray with unsigned 16 bit pixels
+     */
+    public static PVAStructure createUShortImage(final int width, final int height)
+    {
+        final short[] pixels = new short[width * height];
+        for (int i=0; i<pixels.length; ++i)
+            pixels[i] = (short) (i % 65536);
+        return createImage(new PVAShortArray("", true, pixels), width, height);
+    }
+
+    /** @param width Image width
+     *  @param height Image height
+     *  @return Pixels of a detector frame: Noisy background with a spot
+     */
+    public static short[] createDetectorPixels(final int width, final int height)
+    {
+        final Random random = new Random(42);
+        final short[] pixels = new short[width * height];
+        final double cx = width / 2.0, cy = height / 2.0, sigma = width / 10.0;
+        for (int y=0; y<height; ++y)
+            for (int x=0; x<width; ++x)
+            {
+                final double r2 = ((x-cx)*(x-cx) + (y-cy)*(y-cy)) / (2*sigma*sigma);
+                pixels[x + y*width] = (short) (100 + random.nextInt(16) + 30000 * Math.exp(-r2));
+            }
+        return pixels;
+    }
+
+    /** @param codec "lz4", "bslz4" or "zlib"
+     *  @param width Image width
+     *  @param height Image height
+     *  @return Monochrome NTNDArray with unsigned 16 bit pixels, compressed
+     */
+    public static PVAStructure createCompressedImage(final String codec, final int width, final int height)
+    {
+        final short[] pixels = createDetectorPixels(width, height);
+        final ByteBuffer buffer = ByteBuffer.allocate(2 * pixels.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asShortBuffer().put(pixels);
+        final byte[] raw = buffer.array();
+        final byte[] compressed;
+        switch (codec)
+        {
+        case "lz4":
+            compressed = SyntheticCodec.lz4(raw);
+            break;
+        case "bslz4":
+            compressed = SyntheticCodec.bslz4(raw, 2);
+            break;
+        default:
+            compressed = SyntheticCodec.zlib(raw);
+        }
+
+        final PVAUnion value = new PVAUnion("value", "", 0, new PVAByteArray("", true, compressed));
+        // Original data type NDUInt16 = 3
+        final PVAStructure codec_field = new PVAStructure("codec", "codec_t",
+                                                          new PVAString("name", codec),
+                                                          new PVAny("parameters", new PVAInt("", 3)));
+        return new PVAStructure("", "epics:nt/NTNDArray:1.0",
+                                value, codec_field,
+                                new PVALong("compressedSize", compressed.length),
+                                new PVALong("uncompressedSize", raw.length),
+                                createDimensions(width, height), createAlarm(), createTime());
+    }
+}
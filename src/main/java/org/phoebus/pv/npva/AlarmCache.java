@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.epics.vtype.Alarm;
+import org.epics.vtype.AlarmSeverity;
+import org.epics.vtype.AlarmStatus;
+
+/** Cache of {@link Alarm} instances
+ *
+ *  <p>Most updates carry NONE/NONE/"NO_ALARM"
+ *  or one of a few recurring alarm states.
+ *  Returns a shared {@link Alarm} for those,
+ *  without allocating anything when it is found in the cache.
+ *
+ *  <p>For each severity and status, the most recently used messages are kept.
+ *  Lookups do not lock. Concurrent additions may lose an entry,
+ *  which only means that the alarm will be created again.
+ *
+ *  @author Kay Kasemir
+ */
+class AlarmCache
+{
+    /** Cached enum values, since <code>values()</code> returns a new copy on each call */
+    private static final AlarmSeverity[] SEVERITIES = AlarmSeverity.values();
+    private static final AlarmStatus[] STATUSES = AlarmStatus.values();
+
+    /** Number of messages kept per severity and status */
+    private static final int MESSAGES = 8;
+
+    /** Alarms by severity and status, most recent first */
+    private static final AtomicReferenceArray<Alarm[]> cache = new AtomicReferenceArray<>(SEVERITIES.length * STATUSES.length);
+
+    /** @param index Severity index received from server
+     *  @return {@link AlarmSeverity}, UNDEFINED if index is invalid
+     */
+    static AlarmSeverity getSeverity(final int index)
+    {
+        return index >= 0  &&  index < SEVERITIES.length ? SEVERITIES[index] : AlarmSeverity.UNDEFINED;
+    }
+
+    /** @param index Status index received from server
+     *  @return {@link AlarmStatus}, UNDEFINED if index is invalid
+     */
+    static AlarmStatus getStatus(final int index)
+    {
+        return index >= 0  &&  index < STATUSES.length ? STATUSES[index] : AlarmStatus.UNDEFINED;
+    }
+
+    /** @param severity Severity
+     *  @param status Status
+     *  @param message Message
+     *  @return Shared {@link Alarm}
+     */
+    static Alarm get(final AlarmSeverity severity, final AlarmStatus status, final String message)
+    {
+        final int slot = severity.ordinal() * STATUSES.length + status.ordinal();
+        final Alarm[] alarms = cache.get(slot);
+        if (alarms != null)
+            for (Alarm alarm : alarms)
+                if (alarm.getName().equals(message))
+                    return alarm;
+
+        final Alarm alarm = Alarm.of(severity, status, message);
+        // Add as most recent, drop the oldest when full
+        final int keep = alarms == null ? 0 : Math.min(alarms.length, MESSAGES - 1);
+        final Alarm[] update = new Alarm[keep + 1];
+        update[0] = alarm;
+        if (keep > 0)
+            System.arraycopy(alarms, 0, update, 1, keep);
+        cache.set(slot, update);
+        return alarm;
+    }
+}
@@ -0,0 +1,345 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.epics.util.array.CollectionNumbers;
+import org.epics.vtype.VImage;
+import org.epics.vtype.VNumberArray;
+import org.epics.vtype.VType;
+
+/** Pool of large primitive arrays
+ *
+ *  <p>Reduced waveforms, processed images, decompressed images
+ *  and copies of received arrays need new primitive arrays for each update.
+ *  For large arrays, these are 'humongous' allocations for the G1 collector.
+ *  With the pool, such arrays are re-used once all users released them.
+ *
+ *  <p>The pool is opt-in. It is enabled by setting
+ *  <code>org.phoebus.pv.npva.array_pool_bytes</code> to the maximum number
+ *  of bytes held in free arrays.
+ *  Arrays below <code>org.phoebus.pv.npva.array_pool_min_bytes</code>, default 256kB,
+ *  are not pooled.
+ *  Arrays are pooled by type and exact length, since a VType wraps the complete array
+ *  and the waveforms or frames of a channel tend to keep their size.
+ *
+ *  <p>Release semantics:
+ *  Each value that wraps a pooled array has a {@link Lease} with a reference count.
+ *  The {@link SharedChannel} holds one reference for its last value,
+ *  and each {@link PVA_PV} holds one for its current value,
+ *  which they release when the next value arrives.
+ *  In addition, each PV that received the value holds a consumer reference
+ *  that the application releases via {@link PVA_PV#release(VType)}
+ *  once it no longer uses the value.
+ *  Only when all of these references are released does the array return to the pool.
+ *  Values that the application does not release are simply garbage collected,
+ *  so listeners that are not aware of the pool remain safe.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class ArrayPool
+{
+    /** Maximum bytes held in free arrays, 0 to disable */
+    private static final long MAX_BYTES = Long.getLong("org.phoebus.pv.npva.array_pool_bytes", 0);
+
+    /** Minimum size of pooled arrays in bytes */
+    private static final long MIN_BYTES = Long.getLong("org.phoebus.pv.npva.array_pool_min_bytes", 256*1024);
+
+    /** Is the pool enabled? */
+    static final boolean ENABLED = MAX_BYTES > 0;
+
+    /** Free arrays by size class */
+    private static final Map<SizeClass, Queue<Object>> free = new ConcurrentHashMap<>();
+
+    /** Leases of arrays handed out by the pool. Arrays use identity for equals and hash */
+    private static final Map<Object, Lease> leases = Collections.synchronizedMap(new WeakHashMap<>());
+
+    /** Bytes held in free arrays */
+    private static final AtomicLong free_bytes = new AtomicLong();
+
+    private static final LongAdder hits = new LongAdder(),
+                                   misses = new LongAdder(),
+                                   releases = new LongAdder(),
+                                   discards = new LongAdder();
+
+    /** Type and length of an array */
+    private static class SizeClass
+    {
+        final Class<?> type;
+        final int length;
+
+        SizeClass(final Class<?> type, final int length)
+        {
+            this.type = type;
+            this.length = length;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return type.hashCode() * 31 + length;
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (! (obj instanceof SizeClass))
+                return false;
+            final SizeClass other = (SizeClass) obj;
+            return type == other.type  &&  length == other.length;
+        }
+    }
+
+    /** Lease of a pooled array, shared by the holders of one value
+     *
+     *  <p>When the last reference is released, the array returns to the pool.
+     *  Each hand-out of an array has its own lease,
+     *  so a late or duplicate release of an older value
+     *  cannot free the array once it has been handed out again.
+     */
+    public static class Lease
+    {
+        /** Weak, so the lease does not keep its array in the 'leases' map.
+         *  Holders of the lease also hold the value, which keeps the array.
+         */
+        private final WeakReference<Object> array;
+
+        /** Value that wraps the array, set when the lease is claimed */
+        private volatile WeakReference<VType> value = null;
+
+        /** Consumers that have not released the value */
+        private final Set<Object> consumers = ConcurrentHashMap.newKeySet();
+
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        private Lease(final Object array)
+        {
+            this.array = new WeakReference<>(array);
+        }
+
+        /** @param value Value
+         *  @return <code>true</code> if this lease was claimed for that value
+         */
+        private boolean isFor(final VType value)
+        {
+            final WeakReference<VType> claimed = this.value;
+            return claimed != null  &&  claimed.get() == value;
+        }
+
+        /** Add a reference, ignored once the array was returned to the pool */
+        void retain()
+        {
+            references.getAndUpdate(count -> count > 0 ? count + 1 : count);
+        }
+
+        /** Add a reference held by a consumer until it releases the value
+         *  @param consumer Consumer that receives the value
+         */
+        void addConsumer(final Object consumer)
+        {
+            if (consumers.add(consumer))
+                retain();
+        }
+
+        /** Release a reference */
+        public void release()
+        {
+            if (references.decrementAndGet() != 0)
+                return;
+            final Object pooled = array.get();
+            if (pooled != null)
+                recycle(pooled);
+        }
+
+        /** Release the reference of a consumer, ignored if already released
+         *  @param consumer Consumer that received the value
+         */
+        void release(final Object consumer)
+        {
+            if (consumers.remove(consumer))
+                release();
+        }
+    }
+
+    /** @return Is the pool enabled? */
+    public static boolean isEnabled()
+    {
+        return ENABLED;
+    }
+
+    /** Get array from pool
+     *
+     *  <p>The array has a {@link Lease} with one reference,
+     *  to be claimed via {@link #lease(VType)} by the holder of the value that wraps it.
+     *  Content of re-used arrays is undefined.
+     *
+     *  @param type Primitive array type, for example <code>double[].class</code>
+     *  @param length Array length
+     *  @return Pooled or new array
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T get(final Class<T> type, final int length)
+    {
+        final long bytes = getBytes(type, length);
+        if (! ENABLED  ||  bytes < MIN_BYTES)
+            return (T) Array.newInstance(type.getComponentType(), length);
+
+        final Queue<Object> queue = free.get(new SizeClass(type, length));
+        Object array = queue == null ? null : queue.poll();
+        if (array != null)
+        {
+            free_bytes.addAndGet(-bytes);
+            hits.increment();
+        }
+        else
+        {
+            array = Array.newInstance(type.getComponentType(), length);
+            misses.increment();
+        }
+        leases.put(array, new Lease(array));
+        return (T) array;
+    }
+
+    /** Copy a received array
+     *
+     *  <p>Like {@link #get(Class, int)}, a pooled copy has a {@link Lease}.
+     *
+     *  @param array Primitive array
+     *  @return Copy of the array, pooled or new
+     */
+    @SuppressWarnings("unchecked")
+    static <T> T copyOf(final T array)
+    {
+        final int length = Array.getLength(array);
+        final T copy = (T) get(array.getClass(), length);
+        System.arraycopy(array, 0, copy, 0, length);
+        return copy;
+    }
+
+    /** @param value Value that might wrap a pooled array
+     *  @return Pooled array or <code>null</code>
+     */
+    private static Object getArray(final VType value)
+    {
+        if (value instanceof VNumberArray)
+            return CollectionNumbers.wrappedArray(((VNumberArray) value).getData());
+        if (value instanceof VImage)
+            return CollectionNumbers.wrappedArray(((VImage) value).getData());
+        return null;
+    }
+
+    /** Claim the lease of a newly decoded value
+     *
+     *  <p>Must be called once, right after decoding the value,
+     *  by the code that then holds the value.
+     *  The returned lease has one reference, held by the caller.
+     *
+     *  @param value Decoded value, may be <code>null</code>
+     *  @return Lease or <code>null</code> if the value does not wrap a pooled array
+     */
+    public static Lease lease(final VType value)
+    {
+        if (! ENABLED  ||  value == null)
+            return null;
+        final Object array = getArray(value);
+        final Lease lease = array == null ? null : leases.get(array);
+        if (lease == null  ||  lease.value != null)
+            return null;
+        lease.value = new WeakReference<>(value);
+        return lease;
+    }
+
+    /** Release the consumer reference to a value
+     *
+     *  <p>Ignored if the value does not wrap a pooled array,
+     *  if the consumer already released it,
+     *  or if its array has since been handed out for another value.
+     *
+     *  @param value Value received by the consumer, may be <code>null</code>
+     *  @param consumer Consumer
+     */
+    static void release(final VType value, final Object consumer)
+    {
+        if (! ENABLED  ||  value == null)
+            return;
+        final Object array = getArray(value);
+        final Lease lease = array == null ? null : leases.get(array);
+        if (lease != null  &&  lease.isFor(value))
+            lease.release(consumer);
+    }
+
+    /** @param array Array that is no longer used, to be returned to the pool */
+    private static void recycle(final Object array)
+    {
+        releases.increment();
+        final long bytes = getBytes(array.getClass(), Array.getLength(array));
+        if (free_bytes.addAndGet(bytes) > MAX_BYTES)
+        {
+            free_bytes.addAndGet(-bytes);
+            discards.increment();
+            return;
+        }
+        free.computeIfAbsent(new SizeClass(array.getClass(), Array.getLength(array)), size -> new ConcurrentLinkedQueue<>())
+            .add(array);
+    }
+
+    /** @return Number of arrays re-used from the pool */
+    public static long getHits()
+    {
+        return hits.sum();
+    }
+
+    /** @return Number of arrays that had to be allocated */
+    public static long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /** @return Number of arrays released back to the pool */
+    public static long getReleases()
+    {
+        return releases.sum();
+    }
+
+    /** @return Number of released arrays dropped because the pool was full */
+    public static long getDiscards()
+    {
+        return discards.sum();
+    }
+
+    /** @return Bytes held in free arrays */
+    public static long getFreeBytes()
+    {
+        return free_bytes.get();
+    }
+
+    private static long getBytes(final Class<?> type, final int length)
+    {
+        final Class<?> element = type.getComponentType();
+        if (element == byte.class)
+            return length;
+        if (element == short.class)
+            return 2L * length;
+        if (element == int.class  ||  element == float.class)
+            return 4L * length;
+        return 8L * length;
+    }
+}
@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import org.epics.util.array.ArrayDouble;
+import org.epics.util.array.ListNumber;
+
+/** Client-side range and min/max decimation of numeric arrays
+ *
+ *  <p>Selects the requested range of array elements.
+ *  With decimation by N, each block of N elements is replaced
+ *  by its minimum and maximum, in the order they occur,
+ *  so peaks remain visible when plotting the reduced array.
+ *
+ *  <p>The result is a new array that only holds the reduced data,
+ *  obtained from the {@link ArrayPool}.
+ *
+ *  @author Kay Kasemir
+ */
+class ArrayReduction
+{
+    private final boolean has_range;
+    private final int start, end;
+    private final int factor;
+
+    /** @param name_helper PV name with options
+     *  @return {@link ArrayReduction} or <code>null</code> if arrays are used as received
+     */
+    static ArrayReduction forName(final PVNameHelper name_helper)
+    {
+        final boolean client_range = name_helper.hasRange()  &&  ! name_helper.isServerRange();
+        if (! client_range  &&  name_helper.getDecimation() <= 1)
+            return null;
+        return new ArrayReduction(client_range, name_helper.getRangeStart(), name_helper.getRangeEnd(), name_helper.getDecimation());
+    }
+
+    /** @param has_range Apply range?
+     *  @param start First index, negative to count from end
+     *  @param end Last index (inclusive), negative to count from end
+     *  @param factor Decimation factor, 1 for none
+     */
+    ArrayReduction(final boolean has_range, final int start, final int end, final int factor)
+    {
+        this.has_range = has_range;
+        this.start = start;
+        this.end = end;
+        this.factor = factor;
+    }
+
+    /** @param data Array data
+     *  @return Reduced array data
+     */
+    ListNumber apply(final ListNumber data)
+    {
+        final int size = data.size();
+        int first = 0, last = size - 1;
+        if (has_range)
+        {
+            first = Math.max(0, start < 0 ? size + start : start);
+            last = Math.min(size - 1, end < 0 ? size + end : end);
+        }
+        if (last < first)
+            return ArrayDouble.of(new double[0]);
+
+        if (factor <= 1)
+        {
+            final double[] result = ArrayPool.get(double[].class, last - first + 1);
+            for (int i=0; i<result.length; ++i)
+                result[i] = data.getDouble(first + i);
+            return ArrayDouble.of(result);
+        }
+
+        // Min and max for each block, only one value for a last block of one element
+        final int count = last - first + 1;
+        final int blocks = (count + factor - 1) / factor;
+        final double[] result = ArrayPool.get(double[].class, 2 * blocks - (count % factor == 1 ? 1 : 0));
+        int n = 0;
+        for (int block_start = first; block_start <= last; block_start += factor)
+        {
+            final int block_end = Math.min(block_start + factor, last + 1);
+            if (block_end - block_start == 1)
+            {
+                result[n++] = data.getDouble(block_start);
+                continue;
+            }
+            double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            int min_index = -1, max_index = -1;
+            // NaN fails all comparisons and is skipped, infinite values are kept
+            for (int i=block_start; i<block_end; ++i)
+            {
+                final double value = data.getDouble(i);
+                if (value < min  ||  min_index < 0  &&  value == min)
+                {
+                    min = value;
+                    min_index = i;
+                }
+                if (value > max  ||  max_index < 0  &&  value == max)
+                {
+                    max = value;
+                    max_index = i;
+                }
+            }
+            if (min_index < 0)
+            {   // All NaN
+                result[n++] = Double.NaN;
+                result[n++] = Double.NaN;
+            }
+            else if (min_index <= max_index)
+            {
+                result[n++] = min;
+                result[n++] = max;
+            }
+            else
+            {
+                result[n++] = max;
+                result[n++] = min;
+            }
+        }
+        return ArrayDouble.of(result);
+    }
+}
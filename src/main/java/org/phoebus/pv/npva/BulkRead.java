@@ -0,0 +1,227 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.epics.pva.client.PVAChannel;
+import org.epics.vtype.VType;
+
+/** Read many PVs at once
+ *
+ *  <p>Connects and reads the channels with a bounded number
+ *  of reads 'in flight', so throughput scales with that window
+ *  instead of the round-trip time of each read.
+ *  Each channel is closed once its read completes.
+ *
+ *  <p>Example:
+ *  <pre>
+ *  List&lt;BulkRead.Result&gt; results = BulkRead.read(names, 100, 10, TimeUnit.SECONDS).get();
+ *  </pre>
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class BulkRead
+{
+    /** Result for one PV */
+    public static class Result
+    {
+        private final String name;
+        private final VType value;
+        private final Throwable error;
+
+        Result(final String name, final VType value, final Throwable error)
+        {
+            this.name = name;
+            this.value = value;
+            this.error = error;
+        }
+
+        /** @return PV name */
+        public String getName()
+        {
+            return name;
+        }
+
+        /** @return Value, <code>null</code> on error */
+        public VType getValue()
+        {
+            return value;
+        }
+
+        /** @return Error, <code>null</code> on success */
+        public Throwable getError()
+        {
+            return error;
+        }
+
+        /** @return Debug representation */
+        @Override
+        public String toString()
+        {
+            return name + " = " + (error == null ? value : "Error: " + error.getMessage());
+        }
+    }
+
+    private final PVA_Context context;
+    private final List<String> names;
+    private final int window;
+    private final AtomicReferenceArray<Result> results;
+    private final AtomicReferenceArray<PVAChannel> channels;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicInteger remaining;
+    private final CompletableFuture<List<Result>> done = new CompletableFuture<>();
+
+    /** Read PVs
+     *
+     *  @param names PV names, using the same syntax as {@link PVA_PV}
+     *  @param window Maximum number of concurrent reads
+     *  @param timeout Timeout for reading all PVs
+     *  @param unit Unit of the timeout
+     *  @return Future for results, in the order of the names.
+     *          PVs that were not read within the timeout
+     *          have a {@link TimeoutException} as their error.
+     *  @throws Exception on error
+     */
+    public static CompletableFuture<List<Result>> read(final List<String> names, final int window,
+                                                       final long timeout, final TimeUnit unit) throws Exception
+    {
+        final BulkRead read = new BulkRead(PVA_Context.getInstance(), names, window);
+        read.start(timeout, unit);
+        return read.done;
+    }
+
+    private BulkRead(final PVA_Context context, final List<String> names, final int window)
+    {
+        if (window < 1)
+            throw new IllegalArgumentException("Window must be at least 1, got " + window);
+        this.context = context;
+        this.names = List.copyOf(names);
+        this.window = window;
+        results = new AtomicReferenceArray<>(names.size());
+        channels = new AtomicReferenceArray<>(names.size());
+        remaining = new AtomicInteger(names.size());
+    }
+
+    private void start(final long timeout, final TimeUnit unit)
+    {
+        if (names.isEmpty())
+        {
+            done.complete(List.of());
+            return;
+        }
+        CompletableFuture.delayedExecutor(timeout, unit).execute(this::handleTimeout);
+        for (int i=0; i<window; ++i)
+            readNext();
+    }
+
+    /** Start reading the next PV */
+    private void readNext()
+    {
+        int index;
+        while ((index = next.getAndIncrement()) < names.size()  &&  ! done.isDone())
+            if (startRead(index))
+                return;
+            // else: Failed right away, try next PV
+    }
+
+    /** @param index Index of PV to read
+     *  @return <code>true</code> if read was started,
+     *          <code>false</code> if it failed right away
+     */
+    private boolean startRead(final int index)
+    {
+        final String name = names.get(index);
+        try
+        {
+            final PVNameHelper name_helper = PVNameHelper.forName(name);
+            final PVAChannel channel = context.getClient(name_helper.getChannel()).getChannel(name_helper.getChannel());
+            channels.set(index, channel);
+            // Timeout might have happened while creating the channel
+            if (results.get(index) != null  &&  channels.compareAndSet(index, channel, null))
+            {
+                channel.close();
+                return false;
+            }
+            channel.connect()
+                   .thenCompose(connected -> channel.read(name_helper.getReadRequest()))
+                   .thenApply(data ->
+                   {
+                       try
+                       {
+                           return PVAStructureHelper.getVType(data, name_helper);
+                       }
+                       catch (Exception ex)
+                       {
+                           throw new RuntimeException("Cannot decode " + name, ex);
+                       }
+                   })
+                   .whenComplete((value, error) ->
+                   {
+                       if (! finish(index, value, error))
+                           readNext();
+                   });
+            return true;
+        }
+        catch (Exception ex)
+        {
+            finish(index, null, ex);
+            return false;
+        }
+    }
+
+    /** @param index Index of PV
+     *  @param value Value or <code>null</code>
+     *  @param error Error or <code>null</code>
+     *  @return <code>true</code> when all PVs are done
+     */
+    private boolean finish(final int index, final VType value, final Throwable error)
+    {
+        final Throwable cause = (error instanceof CompletionException  &&  error.getCause() != null) ? error.getCause() : error;
+        if (! results.compareAndSet(index, null, new Result(names.get(index), value, cause)))
+            return true; // Already timed out
+        final PVAChannel channel = channels.getAndSet(index, null);
+        if (channel != null)
+            channel.close();
+        if (remaining.decrementAndGet() > 0)
+            return false;
+        complete();
+        return true;
+    }
+
+    /** Mark all PVs that have not been read as timed out */
+    private void handleTimeout()
+    {
+        if (done.isDone())
+            return;
+        for (int i=0; i<names.size(); ++i)
+            if (results.compareAndSet(i, null, new Result(names.get(i), null, new TimeoutException("Timeout reading " + names.get(i)))))
+            {
+                final PVAChannel channel = channels.getAndSet(i, null);
+                if (channel != null)
+                    channel.close();
+            }
+        complete();
+    }
+
+    private void complete()
+    {
+        final List<Result> list = new ArrayList<>(names.size());
+        for (int i=0; i<names.size(); ++i)
+            list.add(results.get(i));
+        done.complete(list);
+    }
+}
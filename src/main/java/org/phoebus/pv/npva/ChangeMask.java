@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+import org.epics.pva.data.PVAData;
+import org.epics.pva.data.PVAStructure;
+
+/** Mask for the 'changes' of a monitor
+ *
+ *  <p>The 'changes' of a monitor update contain one bit per element
+ *  of the structure, numbered depth-first with 0 for the structure itself.
+ *  A set bit for a sub-structure means that all its elements changed.
+ *
+ *  <p>The mask has the bits of selected fields and all their parent structures,
+ *  so it indicates if any of these fields changed in an update.
+ *
+ *  @author Kay Kasemir
+ */
+class ChangeMask
+{
+    private final BitSet mask = new BitSet();
+
+    /** @param top Top-level structure received by the monitor
+     *  @param fields Fields of interest, may contain <code>null</code>
+     */
+    ChangeMask(final PVAStructure top, final PVAData... fields)
+    {
+        final List<Integer> path = new ArrayList<>();
+        path.add(0);
+        locate(top, 0, path, fields);
+    }
+
+    /** @param struct Structure to search
+     *  @param index Index of that structure
+     *  @param path Indices of the structure and its parents
+     *  @param fields Fields to locate
+     *  @return Index of the last element in the structure
+     */
+    private int locate(final PVAStructure struct, int index, final List<Integer> path, final PVAData[] fields)
+    {
+        for (PVAData element : struct.get())
+        {
+            ++index;
+            for (PVAData field : fields)
+                if (field == element)
+                {
+                    mask.set(index);
+                    for (int parent : path)
+                        mask.set(parent);
+                }
+            if (element instanceof PVAStructure)
+            {
+                path.add(index);
+                index = locate((PVAStructure) element, index, path, fields);
+                path.remove(path.size() - 1);
+            }
+        }
+        return index;
+    }
+
+    /** @param changes Changes of a monitor update, <code>null</code> if unknown
+     *  @return <code>true</code> if any of the fields changed
+     */
+    boolean isChanged(final BitSet changes)
+    {
+        return changes == null  ||  changes.intersects(mask);
+    }
+}
@@ -0,0 +1,329 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.epics.pva.data.PVAByteArray;
+import org.epics.pva.data.PVAData;
+import org.epics.pva.data.PVADoubleArray;
+import org.epics.pva.data.PVAFloatArray;
+import org.epics.pva.data.PVAIntArray;
+import org.epics.pva.data.PVALongArray;
+import org.epics.pva.data.PVAShortArray;
+import org.epics.pva.data.PVAString;
+import org.epics.pva.data.PVAStringArray;
+import org.epics.pva.data.PVAStructure;
+import org.epics.pva.data.PVAStructureArray;
+import org.epics.pva.data.PVAUnion;
+import org.epics.pva.data.PVAny;
+
+/** Counters for one {@link SharedChannel}
+ *
+ *  <p>Each update also counts toward the totals of a parent.
+ *  Uses {@link LongAdder}s and no locks,
+ *  so the counters can be updated from any thread
+ *  at little cost.
+ *
+ *  @author Kay Kasemir
+ */
+class ChannelMetrics
+{
+    /** Totals, <code>null</code> for the totals themselves */
+    private final ChannelMetrics parent;
+
+    final LongAdder received = new LongAdder(),
+                    decoded = new LongAdder(),
+                    decode_nanos = new LongAdder(),
+                    dropped = new LongAdder(),
+                    merged = new LongAdder(),
+                    overruns = new LongAdder(),
+                    bytes = new LongAdder(),
+                    listener_nanos = new LongAdder(),
+                    connects = new LongAdder(),
+                    disconnects = new LongAdder(),
+                    connected_nanos = new LongAdder();
+
+    /** Start of current connection, 0 when disconnected */
+    private volatile long connected_since = 0;
+
+    /** Size estimate for the structure received by the subscription */
+    private volatile SizeEstimate estimate = null;
+
+    /** Estimate of the size of a structure
+     *
+     *  <p>Counts array elements and strings at their size on the wire,
+     *  other fields as 8 bytes.
+     *  Does not serialize the data, so it is only an estimate.
+     *
+     *  <p>The PVAClient updates the structure of a subscription in place,
+     *  so the size of scalars, strings, string arrays and structure arrays
+     *  is computed once for the structure.
+     *  Only the length of numeric arrays, including those in unions,
+     *  is checked for each update.
+     */
+    private static class SizeEstimate
+    {
+        /** Structure for which the estimate was created */
+        private final PVAStructure struct;
+
+        /** Size of the fields that are only counted once */
+        private final long fixed;
+
+        /** Numeric arrays, unions and 'any' fields, checked for each update */
+        private final PVAData[] variable;
+
+        SizeEstimate(final PVAStructure struct)
+        {
+            this.struct = struct;
+            final List<PVAData> fields = new ArrayList<>();
+            fixed = locate(struct, fields);
+            variable = fields.toArray(new PVAData[fields.size()]);
+        }
+
+        /** @param data Data to check
+         *  @param fields Variable fields found in the data
+         *  @return Size of the fixed fields
+         */
+        private static long locate(final PVAData data, final List<PVAData> fields)
+        {
+            if (data instanceof PVAStructure)
+            {
+                long size = 0;
+                for (PVAData element : ((PVAStructure) data).get())
+                    size += locate(element, fields);
+                return size;
+            }
+            if (getArraySize(data) >= 0  ||  data instanceof PVAUnion  ||  data instanceof PVAny)
+            {
+                fields.add(data);
+                return 0;
+            }
+            return estimateSize(data);
+        }
+
+        /** @param data Received structure
+         *  @return <code>true</code> if estimate applies to that structure
+         */
+        boolean isFor(final PVAStructure data)
+        {
+            return data == struct;
+        }
+
+        /** @return Estimated size of the current content */
+        long getSize()
+        {
+            long size = fixed;
+            for (PVAData field : variable)
+            {
+                final long array = getArraySize(field);
+                if (array >= 0)
+                    size += array;
+                else
+                {   // Union or 'any'
+                    final PVAData value = field instanceof PVAUnion ? ((PVAUnion) field).get()
+                                                                   : ((PVAny) field).get();
+                    final long value_size = getArraySize(value);
+                    size += 1 + (value == null ? 0 : value_size >= 0 ? value_size : 8);
+                }
+            }
+            return size;
+        }
+    }
+
+    /** @param parent Totals, <code>null</code> for the totals themselves */
+    ChannelMetrics(final ChannelMetrics parent)
+    {
+        this.parent = parent;
+    }
+
+    /** @param data Received update. Called by the PVAClient thread of the subscription */
+    void received(final PVAStructure data)
+    {
+        SizeEstimate current = estimate;
+        if (current == null  ||  ! current.isFor(data))
+            estimate = current = new SizeEstimate(data);
+        final long size = current.getSize();
+        received.increment();
+        bytes.add(size);
+        if (parent != null)
+        {
+            parent.received.increment();
+            parent.bytes.add(size);
+        }
+    }
+
+    /** @param nanos Time spent decoding an update */
+    void decoded(final long nanos)
+    {
+        decoded.increment();
+        decode_nanos.add(nanos);
+        if (parent != null)
+            parent.decoded(nanos);
+    }
+
+    /** @param count Number of updates dropped by rate limit or queue overflow */
+    void dropped(final long count)
+    {
+        if (count <= 0)
+            return;
+        dropped.add(count);
+        if (parent != null)
+            parent.dropped(count);
+    }
+
+    /** Pending value was replaced by a newer one */
+    void merged()
+    {
+        merged.increment();
+        if (parent != null)
+            parent.merged();
+    }
+
+    /** Update reported overruns */
+    void overrun()
+    {
+        overruns.increment();
+        if (parent != null)
+            parent.overrun();
+    }
+
+    /** @param nanos Time spent in PV listeners */
+    void notified(final long nanos)
+    {
+        listener_nanos.add(nanos);
+        if (parent != null)
+            parent.notified(nanos);
+    }
+
+    /** Channel connected */
+    void connected()
+    {
+        connected_since = System.nanoTime();
+        connects.increment();
+        if (parent != null)
+            parent.connects.increment();
+    }
+
+    /** Channel disconnected or closed */
+    void disconnected()
+    {
+        final long since = connected_since;
+        if (since == 0)
+            return;
+        connected_since = 0;
+        final long nanos = System.nanoTime() - since;
+        disconnects.increment();
+        connected_nanos.add(nanos);
+        if (parent != null)
+        {
+            parent.disconnects.increment();
+            parent.connected_nanos.add(nanos);
+        }
+    }
+
+    /** @return Nanoseconds of the current connection, 0 when disconnected */
+    long getCurrentConnectionNanos()
+    {
+        final long since = connected_since;
+        return since == 0 ? 0 : System.nanoTime() - since;
+    }
+
+    /** Estimate size of data by checking all its elements
+     *  @param data Data
+     *  @return Estimated size in bytes
+     *  @see SizeEstimate
+     */
+    private static long estimateSize(final PVAData data)
+    {
+        if (data instanceof PVAStructure)
+        {
+            long size = 0;
+            for (PVAData element : ((PVAStructure) data).get())
+                size += estimateSize(element);
+            return size;
+        }
+        final long array = getArraySize(data);
+        if (array >= 0)
+            return array;
+        if (data instanceof PVAString)
+        {
+            final String text = ((PVAString) data).get();
+            return text == null ? 1 : 1 + text.length();
+        }
+        if (data instanceof PVAStringArray)
+        {
+            long size = 0;
+            for (String text : ((PVAStringArray) data).get())
+                size += text == null ? 1 : 1 + text.length();
+            return size;
+        }
+        if (data instanceof PVAStructureArray)
+        {
+            long size = 0;
+            for (PVAStructure element : ((PVAStructureArray) data).get())
+                if (element != null)
+                    size += estimateSize(element);
+            return size;
+        }
+        if (data instanceof PVAUnion)
+        {
+            final PVAData value = ((PVAUnion) data).get();
+            return value == null ? 1 : 1 + estimateSize(value);
+        }
+        if (data instanceof PVAny)
+        {
+            final PVAData value = ((PVAny) data).get();
+            return value == null ? 1 : 1 + estimateSize(value);
+        }
+        return 8;
+    }
+
+    /** @param data Data
+     *  @return Size of numeric array in bytes, -1 if data is not a numeric array
+     */
+    private static long getArraySize(final PVAData data)
+    {
+        if (data instanceof PVADoubleArray)
+            return 8L * ((PVADoubleArray) data).get().length;
+        if (data instanceof PVAFloatArray)
+            return 4L * ((PVAFloatArray) data).get().length;
+        if (data instanceof PVALongArray)
+            return 8L * ((PVALongArray) data).get().length;
+        if (data instanceof PVAIntArray)
+            return 4L * ((PVAIntArray) data).get().length;
+        if (data instanceof PVAShortArray)
+            return 2L * ((PVAShortArray) data).get().length;
+        if (data instanceof PVAByteArray)
+            return ((PVAByteArray) data).get().length;
+        return -1;
+    }
+
+    /** @param name Name for the snapshot
+     *  @param current_connections Nanoseconds of current connections,
+     *         which are not yet included in the connected time
+     *  @return Snapshot of the counters
+     */
+    PVA_Metrics.Snapshot snapshot(final String name, final long current_connections)
+    {
+        return new PVA_Metrics.Snapshot(name, received.sum(), decoded.sum(), decode_nanos.sum(),
+                                        dropped.sum(), merged.sum(), overruns.sum(), bytes.sum(), listener_nanos.sum(),
+                                        connects.sum(), disconnects.sum(),
+                                        connected_nanos.sum() + current_connections);
+    }
+
+    /** @param name Name for the snapshot
+     *  @return Snapshot of the counters
+     */
+    PVA_Metrics.Snapshot snapshot(final String name)
+    {
+        return snapshot(name, getCurrentConnectionNanos());
+    }
+}
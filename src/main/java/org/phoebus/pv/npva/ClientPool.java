@@ -0,0 +1,90 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.epics.pva.client.PVAClient;
+
+/** Pool of {@link PVAClient}s
+ *
+ *  <p>Each client has its own search, TCP and receive threads.
+ *  Channels are assigned to clients by consistent hashing of the channel name,
+ *  so a channel always uses the same client,
+ *  and channels spread evenly across the clients.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+class ClientPool
+{
+    /** Points on the hash ring per client, to even out the distribution */
+    private static final int VIRTUAL_NODES = 256;
+
+    private final PVAClient[] clients;
+
+    /** Hash ring: Hash of virtual node to client */
+    private final TreeMap<Integer, PVAClient> ring = new TreeMap<>();
+
+    /** @param size Number of clients
+     *  @throws Exception on error
+     */
+    ClientPool(final int size) throws Exception
+    {
+        if (size < 1)
+            throw new IllegalArgumentException("Need at least 1 client, got " + size);
+        clients = new PVAClient[size];
+        for (int i=0; i<size; ++i)
+        {
+            clients[i] = new PVAClient();
+            for (int n=0; n<VIRTUAL_NODES; ++n)
+                ring.put(hash("client " + i + " node " + n), clients[i]);
+        }
+    }
+
+    /** @param text Text
+     *  @return Well mixed hash
+     */
+    private static int hash(final String text)
+    {
+        // String.hashCode() is not well distributed for similar names
+        // like "device:1", "device:2", so mix its bits (murmur3 finalizer)
+        int h = text.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /** @return Number of clients */
+    int size()
+    {
+        return clients.length;
+    }
+
+    /** @param channel_name Channel name
+     *  @return Client to use for that channel
+     */
+    PVAClient getClient(final String channel_name)
+    {
+        if (clients.length == 1)
+            return clients[0];
+        final Map.Entry<Integer, PVAClient> entry = ring.ceilingEntry(hash(channel_name));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /** Close all clients */
+    void close()
+    {
+        for (PVAClient client : clients)
+            client.close();
+    }
+}
@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.epics.pva.client.PVAChannel;
+
+/** Writer that coalesces writes, latest value wins
+ *
+ *  <p>Only one write is in flight.
+ *  Values written meanwhile replace each other,
+ *  and only the last one is written once the current write completes.
+ *  This way the channel follows for example a slider
+ *  without a growing backlog of outdated values.
+ *
+ *  <p>The future of a replaced value completes together with
+ *  the write of the value that replaced it,
+ *  including its error if that write fails.
+ *
+ *  @author Kay Kasemir
+ */
+class CoalescingWriter
+{
+    /** Writes that were replaced by a later value, for all channels */
+    static final LongAdder total_coalesced = new LongAdder();
+
+    private final PVAChannel channel;
+    private final String request;
+
+    /** Writes that were replaced by a later value */
+    private final LongAdder coalesced = new LongAdder();
+
+    /** Is a write in flight? Guarded by 'this' */
+    private boolean busy = false;
+
+    /** Value to write next, valid if there are pending futures. Guarded by 'this' */
+    private Object pending_value = null;
+
+    /** Futures to complete with the write of the pending value. Guarded by 'this' */
+    private List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+    /** @param channel Channel to write
+     *  @param request Write request
+     */
+    CoalescingWriter(final PVAChannel channel, final String request)
+    {
+        this.channel = channel;
+        this.request = request;
+    }
+
+    /** @param value Value to write
+     *  @return Future that completes when the value or a later one has been written
+     */
+    CompletableFuture<Void> write(final Object value)
+    {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        synchronized (this)
+        {
+            if (busy)
+            {
+                if (! pending.isEmpty())
+                {
+                    coalesced.increment();
+                    total_coalesced.increment();
+                }
+                pending_value = value;
+                pending.add(result);
+                return result;
+            }
+            busy = true;
+        }
+        send(value, List.of(result));
+        return result;
+    }
+
+    /** @param value Value to write
+     *  @param futures Futures to complete when written
+     */
+    private void send(final Object value, final List<CompletableFuture<Void>> futures)
+    {
+        CompletableFuture<Void> done;
+        try
+        {
+            done = channel.write(request, value);
+        }
+        catch (Exception ex)
+        {
+            done = CompletableFuture.failedFuture(ex);
+        }
+        done.whenComplete((ignored, error) ->
+        {
+            for (CompletableFuture<Void> future : futures)
+                if (error == null)
+                    future.complete(null);
+                else
+                    future.completeExceptionally(error);
+            sendPending();
+        });
+    }
+
+    /** Send pending value, or mark writer as idle */
+    private void sendPending()
+    {
+        final Object value;
+        final List<CompletableFuture<Void>> futures;
+        synchronized (this)
+        {
+            if (pending.isEmpty())
+            {
+                busy = false;
+                return;
+            }
+            value = pending_value;
+            futures = pending;
+            pending_value = null;
+            pending = new ArrayList<>();
+        }
+        send(value, futures);
+    }
+
+    /** @return Number of writes that were replaced by a later value */
+    long getCoalesced()
+    {
+        return coalesced.sum();
+    }
+}
@@ -0,0 +1,452 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.epics.pva.data.PVAArray;
+import org.epics.pva.data.PVAByte;
+import org.epics.pva.data.PVAByteArray;
+import org.epics.pva.data.PVAData;
+import org.epics.pva.data.PVADouble;
+import org.epics.pva.data.PVADoubleArray;
+import org.epics.pva.data.PVAFloat;
+import org.epics.pva.data.PVAFloatArray;
+import org.epics.pva.data.PVAInt;
+import org.epics.pva.data.PVAIntArray;
+import org.epics.pva.data.PVALong;
+import org.epics.pva.data.PVALongArray;
+import org.epics.pva.data.PVANumber;
+import org.epics.pva.data.PVAShort;
+import org.epics.pva.data.PVAShortArray;
+import org.epics.pva.data.PVAString;
+import org.epics.pva.data.PVAStringArray;
+import org.epics.pva.data.PVAStructure;
+import org.epics.util.array.ArrayByte;
+import org.epics.util.array.ArrayDouble;
+import org.epics.util.array.ArrayFloat;
+import org.epics.util.array.ArrayInteger;
+import org.epics.util.array.ArrayLong;
+import org.epics.util.array.ArrayShort;
+import org.epics.util.array.ArrayUByte;
+import org.epics.util.array.ArrayUInteger;
+import org.epics.util.array.ArrayULong;
+import org.epics.util.array.ArrayUShort;
+import org.epics.vtype.Alarm;
+import org.epics.vtype.AlarmSeverity;
+import org.epics.vtype.AlarmStatus;
+import org.epics.vtype.EnumDisplay;
+import org.epics.vtype.Time;
+import org.epics.vtype.VByte;
+import org.epics.vtype.VByteArray;
+import org.epics.vtype.VDouble;
+import org.epics.vtype.VDoubleArray;
+import org.epics.vtype.VEnum;
+import org.epics.vtype.VFloat;
+import org.epics.vtype.VFloatArray;
+import org.epics.vtype.VImage;
+import org.epics.vtype.VInt;
+import org.epics.vtype.VIntArray;
+import org.epics.vtype.VLong;
+import org.epics.vtype.VLongArray;
+import org.epics.vtype.VNumberArray;
+import org.epics.vtype.VShort;
+import org.epics.vtype.VShortArray;
+import org.epics.vtype.VString;
+import org.epics.vtype.VStringArray;
+import org.epics.vtype.VType;
+import org.epics.vtype.VUByte;
+import org.epics.vtype.VUByteArray;
+import org.epics.vtype.VUInt;
+import org.epics.vtype.VUIntArray;
+import org.epics.vtype.VULong;
+import org.epics.vtype.VULongArray;
+import org.epics.vtype.VUShort;
+import org.epics.vtype.VUShortArray;
+
+/** Plan for decoding a {@link PVAStructure} into a {@link VType}
+ *
+ *  <p>Compiled once for a structure:
+ *  Determines the normative type, locates the 'value',
+ *  'alarm', 'timeStamp' and display meta data
+ *  and selects the matching decoder.
+ *
+ *  <p>The PVAClient updates the structure of a subscription in place,
+ *  so the plan compiled for the first update can be used
+ *  for all following updates, without comparing type names
+ *  or looking up fields by name.
+ *  When the channel re-connects, possibly with a different type,
+ *  a new structure is received and the plan needs to be compiled again.
+ *
+ *  <p>Alarm, time and display meta data is only decoded again
+ *  when the 'changes' of a monitor update indicate
+ *  that the respective fields changed.
+ *  Otherwise the previously decoded meta data is re-used.
+ *  Since the plan keeps this state, it must only be used
+ *  by one thread at a time.
+ *
+ *  <p>Ownership of arrays:
+ *  The PVAClient decodes each update of a subscription into the structure
+ *  of that subscription and re-uses an array when its size did not change.
+ *  By default, decoded values wrap the arrays of the received structure,
+ *  so they only remain valid until the PVAClient receives the next update.
+ *  That is only safe for values that are used on the PVAClient thread
+ *  while it delivers the update.
+ *  Values that are handed to another thread must be decoded
+ *  by a plan compiled to copy received arrays.
+ *  Arrays that are reduced, processed or decompressed
+ *  are always new and thus not copied again.
+ *  Structures returned by a 'get' are not updated by the PVAClient,
+ *  so values decoded from them remain valid.
+ *
+ *  <p>For images with <code>stats=N</code>, the plan also computes
+ *  the {@link ImageStatistics} of each decoded image.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class DecodePlan
+{
+    /** Decoder for the current content of the structure */
+    @FunctionalInterface
+    private interface ValueDecoder
+    {
+        /** @param changes Changes of a monitor update, <code>null</code> if unknown
+         *  @return Value
+         *  @throws Exception on error
+         */
+        VType decode(BitSet changes) throws Exception;
+    }
+
+    /** Decoder for NTNDArray */
+    private static class ImageValueDecoder implements ValueDecoder
+    {
+        private final PVAStructure image;
+        private final ImageProcessing processing;
+        private final ImageCodec codec = new ImageCodec();
+        private final int statistics_bins;
+        private final boolean copy;
+
+        /** Statistics of the last decoded image, <code>null</code> if none */
+        private ImageStatistics statistics = null;
+
+        ImageValueDecoder(final PVAStructure image, final ImageProcessing processing, final int statistics_bins, final boolean copy)
+        {
+            this.image = image;
+            this.processing = processing;
+            this.statistics_bins = statistics_bins;
+            this.copy = copy;
+        }
+
+        @Override
+        public VType decode(final BitSet changes) throws Exception
+        {
+            final VType value = ImageDecoder.decode(image, processing, codec, copy);
+            statistics = statistics_bins > 0  &&  value instanceof VImage
+                       ? ImageStatistics.compute((VImage) value, statistics_bins)
+                       : null;
+            return value;
+        }
+    }
+
+    /** Structure for which the plan was compiled */
+    private final PVAStructure struct;
+
+    private final ValueDecoder decoder;
+
+    /** Compile decode plan
+     *  @param struct Structure received from server
+     *  @param name_helper Name helper that identifies the field to decode
+     *  @return {@link DecodePlan} for values that wrap the received arrays
+     *  @throws Exception on error
+     */
+    public static DecodePlan compile(final PVAStructure struct, final PVNameHelper name_helper) throws Exception
+    {
+        return compile(struct, name_helper, false);
+    }
+
+    /** Compile decode plan
+     *  @param struct Structure received from server
+     *  @param name_helper Name helper that identifies the field to decode
+     *  @param copy Copy received arrays, so values remain stable after the next update?
+     *  @return {@link DecodePlan}
+     *  @throws Exception on error
+     */
+    public static DecodePlan compile(final PVAStructure struct, final PVNameHelper name_helper, final boolean copy) throws Exception
+    {
+        return new DecodePlan(struct, name_helper, copy);
+    }
+
+    private DecodePlan(final PVAStructure struct, final PVNameHelper name_helper, final boolean copy) throws Exception
+    {
+        this.struct = struct;
+        decoder = createDecoder(struct, name_helper, copy);
+    }
+
+    /** @param data Received structure
+     *  @return <code>true</code> if plan applies to that structure
+     */
+    boolean isFor(final PVAStructure data)
+    {
+        return data == struct;
+    }
+
+    /** @return <code>true</code> if structure is decoded as image */
+    boolean isImage()
+    {
+        return decoder instanceof ImageValueDecoder;
+    }
+
+    /** @return {@link ImageStatistics} of the value last decoded by this plan,
+     *          <code>null</code> if not an image or no <code>stats=N</code>
+     */
+    ImageStatistics getStatistics()
+    {
+        return decoder instanceof ImageValueDecoder ? ((ImageValueDecoder) decoder).statistics : null;
+    }
+
+    /** @return Value for current content of the structure
+     *  @throws Exception on error
+     */
+    public VType decode() throws Exception
+    {
+        return decoder.decode(null);
+    }
+
+    /** @param changes Changes of a monitor update
+     *  @return Value for current content of the structure
+     *  @throws Exception on error
+     */
+    public VType decode(final BitSet changes) throws Exception
+    {
+        return decoder.decode(changes);
+    }
+
+    private static ValueDecoder createDecoder(final PVAStructure struct, final PVNameHelper name_helper, final boolean copy) throws Exception
+    {
+        PVAStructure actual = struct;
+        if (! name_helper.getField().equals("value"))
+        {   // Fetch data from a sub-field
+            final PVAData field = struct.get(name_helper.getField());
+            if (field instanceof PVAStructure)
+                actual = (PVAStructure) field;
+            else if (field instanceof PVANumber)
+                return createNumberDecoder(struct, struct, (PVANumber) field);
+            if (field instanceof PVAString)
+                return createStringDecoder(struct, struct, (PVAString) field);
+        }
+
+        // Handle normative types
+        String type = actual.getStructureName();
+        if (type.startsWith("epics:nt/"))
+            type = type.substring(9);
+        if (type.equals("NTScalar:1.0"))
+            return createScalarDecoder(struct, actual);
+        if (type.equals("NTEnum:1.0"))
+            return createEnumDecoder(struct, actual, copy);
+        if (type.equals("NTScalarArray:1.0"))
+            return createArrayDecoder(struct, actual, copy, ArrayReduction.forName(name_helper));
+        final PVAStructure data = actual;
+        if (type.equals("NTNDArray:1.0"))
+            return new ImageValueDecoder(data, ImageProcessing.forName(name_helper), name_helper.getStatisticsBins(), copy);
+        if (type.equals("NTTable:1.0"))
+            return changes -> PVAStructureHelper.decodeNTTable(data, copy);
+
+        // Handle data that contains a "value", even though not marked as NT*
+        final PVAData field = actual.get("value");
+        if (field instanceof PVANumber  ||
+            field instanceof PVAString)
+            return createScalarDecoder(struct, actual);
+        else if (field instanceof PVAArray)
+            return createArrayDecoder(struct, actual, copy, ArrayReduction.forName(name_helper));
+        // TODO: not really sure how to handle arbitrary structures -- no solid use cases yet...
+
+        // Create string that indicates name of unknown type
+        return changes -> VString.of(data.format(),
+                                Alarm.of(AlarmSeverity.UNDEFINED, AlarmStatus.CLIENT, "Unknown type"),
+                                Time.now());
+    }
+
+    private static ValueDecoder createScalarDecoder(final PVAStructure top, final PVAStructure struct) throws Exception
+    {
+        final PVAData field = struct.get("value");
+        if (field instanceof PVANumber)
+            return createNumberDecoder(top, struct, (PVANumber) field);
+        if (field instanceof PVAString)
+            return createStringDecoder(top, struct, (PVAString) field);
+        throw new Exception("Expected struct with scalar 'value', got " + struct);
+    }
+
+    private static ValueDecoder createStringDecoder(final PVAStructure top, final PVAStructure struct, final PVAString field)
+    {
+        final Decoders.AlarmFields alarm = new Decoders.AlarmFields(top, struct);
+        final Decoders.TimeFields time = new Decoders.TimeFields(top, struct);
+        return changes -> VString.of(field.get(), alarm.decode(changes), time.decode(changes));
+    }
+
+    private static ValueDecoder createEnumDecoder(final PVAStructure top, final PVAStructure struct, final boolean copy) throws Exception
+    {
+        final Decoders.AlarmFields alarm = new Decoders.AlarmFields(top, struct);
+        final Decoders.TimeFields time = new Decoders.TimeFields(top, struct);
+        final PVAStructure section = struct.get("value");
+        final PVAInt index = section.get("index");
+        final PVAStringArray choices = struct.get("choices");
+        final AtomicReference<ChangeMask> choices_mask = new AtomicReference<>();
+        final AtomicReference<EnumDisplay> display = new AtomicReference<>();
+        return changes ->
+        {
+            if (changes != null  &&  choices_mask.get() == null)
+                choices_mask.set(new ChangeMask(top, choices));
+            if (changes == null  ||  display.get() == null  ||  choices_mask.get().isChanged(changes))
+                display.set(EnumDisplay.of(copy ? choices.get().clone() : choices.get()));
+            return VEnum.of(index.get(), display.get(), alarm.decode(changes), time.decode(changes));
+        };
+    }
+
+    private static ValueDecoder createNumberDecoder(final PVAStructure top, final PVAStructure struct, final PVANumber field) throws Exception
+    {
+        final Decoders.AlarmFields alarm = new Decoders.AlarmFields(top, struct);
+        final Decoders.TimeFields time = new Decoders.TimeFields(top, struct);
+        final Decoders.DisplayFields display = new Decoders.DisplayFields(top, struct);
+        if (field instanceof PVADouble)
+        {
+            final PVADouble typed = (PVADouble) field;
+            return changes -> VDouble.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVAFloat)
+        {
+            final PVAFloat typed = (PVAFloat) field;
+            return changes -> VFloat.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVALong)
+        {
+            final PVALong typed = (PVALong) field;
+            if (typed.isUnsigned())
+                return changes -> VULong.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+            return changes -> VLong.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVAInt)
+        {
+            final PVAInt typed = (PVAInt) field;
+            if (typed.isUnsigned())
+                return changes -> VUInt.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+            return changes -> VInt.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVAShort)
+        {
+            final PVAShort typed = (PVAShort) field;
+            if (typed.isUnsigned())
+                return changes -> VUShort.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+            return changes -> VShort.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVAByte)
+        {
+            final PVAByte typed = (PVAByte) field;
+            if (typed.isUnsigned())
+                return changes -> VUByte.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+            return changes -> VByte.of(typed.get(), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        throw new Exception("Cannot handle " + field.getClass().getName());
+    }
+
+    /** @param decoder Array decoder
+     *  @param reduction {@link ArrayReduction} or <code>null</code>
+     *  @return Decoder that reduces numeric arrays to a {@link VDoubleArray}
+     */
+    private static ValueDecoder reduce(final ValueDecoder decoder, final ArrayReduction reduction)
+    {
+        if (reduction == null)
+            return decoder;
+        return changes ->
+        {
+            final VType value = decoder.decode(changes);
+            if (! (value instanceof VNumberArray))
+                return value;
+            final VNumberArray array = (VNumberArray) value;
+            return VDoubleArray.of(reduction.apply(array.getData()), array.getAlarm(), array.getTime(), array.getDisplay());
+        };
+    }
+
+    /** @param top Top-level structure
+     *  @param struct Structure with 'value' array
+     *  @param copy Copy received arrays?
+     *  @param reduction {@link ArrayReduction} or <code>null</code>
+     *  @return Array decoder
+     */
+    private static ValueDecoder createArrayDecoder(final PVAStructure top, final PVAStructure struct,
+                                                   final boolean copy, final ArrayReduction reduction)
+    {
+        // Reduction creates a new array, no need to copy the received one
+        return reduce(createArrayDecoder(top, struct, copy  &&  reduction == null), reduction);
+    }
+
+    /** @param array Received array
+     *  @param copy Copy the array?
+     *  @return Received array or copy
+     */
+    private static <T> T received(final T array, final boolean copy)
+    {
+        return copy ? ArrayPool.copyOf(array) : array;
+    }
+
+    private static ValueDecoder createArrayDecoder(final PVAStructure top, final PVAStructure struct, final boolean copy)
+    {
+        final Decoders.AlarmFields alarm = new Decoders.AlarmFields(top, struct);
+        final Decoders.TimeFields time = new Decoders.TimeFields(top, struct);
+        final Decoders.DisplayFields display = new Decoders.DisplayFields(top, struct);
+        final PVAData field = struct.get("value");
+        if (field instanceof PVADoubleArray)
+        {
+            final PVADoubleArray typed = (PVADoubleArray) field;
+            return changes -> VDoubleArray.of(ArrayDouble.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVAFloatArray)
+        {
+            final PVAFloatArray typed = (PVAFloatArray) field;
+            return changes -> VFloatArray.of(ArrayFloat.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVALongArray)
+        {
+            final PVALongArray typed = (PVALongArray) field;
+            if (typed.isUnsigned())
+                return changes -> VULongArray.of(ArrayULong.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+            return changes -> VLongArray.of(ArrayLong.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVAIntArray)
+        {
+            final PVAIntArray typed = (PVAIntArray) field;
+            if (typed.isUnsigned())
+                return changes -> VUIntArray.of(ArrayUInteger.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+            return changes -> VIntArray.of(ArrayInteger.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVAShortArray)
+        {
+            final PVAShortArray typed = (PVAShortArray) field;
+            if (typed.isUnsigned())
+                return changes -> VUShortArray.of(ArrayUShort.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+            return changes -> VShortArray.of(ArrayShort.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVAByteArray)
+        {
+            final PVAByteArray typed = (PVAByteArray) field;
+            if (typed.isUnsigned())
+                return changes -> VUByteArray.of(ArrayUByte.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+            return changes -> VByteArray.of(ArrayByte.of(received(typed.get(), copy)), alarm.decode(changes), time.decode(changes), display.decode(changes));
+        }
+        if (field instanceof PVAStringArray)
+        {
+            final PVAStringArray typed = (PVAStringArray) field;
+            return changes -> VStringArray.of(List.of(typed.get()), alarm.decode(changes), time.decode(changes));
+        }
+        return changes -> VString.of(struct.format(),
+                                Alarm.of(AlarmSeverity.UNDEFINED, AlarmStatus.CLIENT, "Unknown array type"),
+                                Time.now());
+    }
+}
@@ -11,6 +11,7 @@ import java.text.FieldPosition;
 import java.text.NumberFormat;
 import java.text.ParsePosition;
 import java.time.Instant;
+import java.util.BitSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -41,8 +42,6 @@ import org.epics.util.array.ArrayUByte;
 import org.epics.util.array.ArrayUInteger;
 import org.epics.util.array.ArrayULong;
 import org.epics.util.array.ArrayUShort;
-import org.epics.util.stats.Range;
-import org.epics.util.text.NumberFormats;
 import org.epics.vtype.Alarm;
 import org.epics.vtype.AlarmSeverity;
 import org.epics.vtype.AlarmStatus;
@@ -82,90 +81,326 @@ public class Decoders
 {
     private static final Instant NO_TIME = Instant.ofEpochSecond(0, 0);
     private static final Integer NO_USERTAG = Integer.valueOf(0);
+    private static final Alarm NO_ALARM = Alarm.of(AlarmSeverity.NONE, AlarmStatus.NONE, AlarmStatus.NONE.name());
 
-    private static final Display noDisplay = Display.none();
+    static final Display noDisplay = Display.none();
 
     /** Cache for formats */
     private static final Map<String, NumberFormat> formatterCache =
             new ConcurrentHashMap<>();
 
-    /** @param struct Structure
-     *  @param name Name of Number field
+    /** @param field Number field, may be <code>null</code>
      *  @param default_value Default number if field doesn't exist
      *  @return Double value
      */
-    private static double getDoubleValue(final PVAStructure struct, final String name,
-                                        final double default_value)
+    private static double getDoubleValue(final PVANumber field, final double default_value)
     {
-        final PVANumber field = struct.get(name);
         if (field != null)
             return field.getNumber().doubleValue();
         else
             return default_value;
     }
 
-    static Alarm decodeAlarm(final PVAStructure struct)
+    /** Located fields of an alarm_t
+     *
+     *  <p>Looks the fields up once, then decodes
+     *  the current content of the structure.
+     *  When decoding monitor updates, the last result
+     *  is re-used until the fields change.
+     */
+    static class AlarmFields
     {
-        // Decode alarm_t alarm
-        final AlarmSeverity severity;
-        final AlarmStatus status;
-        final String message;
+        private final PVAStructure top, alarm;
+        private final PVAInt severity, status;
+        private final PVAString message;
+        private ChangeMask mask = null;
+        private Alarm last = null;
+
+        /** @param top Top-level structure received from server
+         *  @param struct Structure that may contain 'alarm'
+         */
+        AlarmFields(final PVAStructure top, final PVAStructure struct)
+        {
+            this.top = top;
+            alarm = struct.get("alarm");
+            if (alarm != null)
+            {
+                severity = alarm.get("severity");
+                status = alarm.get("status");
+                message = alarm.get("message");
+            }
+            else
+            {
+                severity = status = null;
+                message = null;
+            }
+        }
 
-        final PVAStructure alarm = struct.get("alarm");
-        if (alarm != null)
+        /** @param changes Changes of a monitor update, <code>null</code> if unknown,
+         *                 which decodes without building the change mask
+         *  @return {@link Alarm} for current content
+         */
+        Alarm decode(final BitSet changes)
         {
-            PVAInt code = alarm.get("severity");
-            severity = code == null
-                     ? AlarmSeverity.UNDEFINED
-                     : AlarmSeverity.values()[code.get()];
-
-            code = alarm.get("status");
-            status = code == null
-                    ? AlarmStatus.UNDEFINED
-                    : AlarmStatus.values()[code.get()];
-
-            final PVAString msg = alarm.get("message");
-            message = msg == null ? "<null>" : msg.get();
+            if (changes == null)
+                return last = decode();
+            if (mask == null)
+                mask = new ChangeMask(top, severity, status, message);
+            if (last == null  ||  mask.isChanged(changes))
+                last = decode();
+            return last;
         }
-        else
+
+        /** @return {@link Alarm} for current content */
+        Alarm decode()
         {
-            severity = AlarmSeverity.NONE;
-            status = AlarmStatus.NONE;
-            message = AlarmStatus.NONE.name();
+            if (alarm == null)
+                return NO_ALARM;
+            return decodeAlarm(severity, status, message);
         }
-        return Alarm.of(severity, status, message);
     }
 
-    static Time decodeTime(final PVAStructure struct)
+    /** Located fields of a time_t */
+    static class TimeFields
     {
-        // Decode time_t timeStamp
-        final Instant timestamp;
-        final Integer usertag;
+        private final PVAStructure top;
+        private final PVALong sec;
+        private final PVAInt nano, user;
+        private ChangeMask mask = null;
+        private Time last = null;
+
+        /** @param top Top-level structure received from server
+         *  @param struct Structure that may contain 'timeStamp'
+         */
+        TimeFields(final PVAStructure top, final PVAStructure struct)
+        {
+            this.top = top;
+            final PVAStructure time = struct.get("timeStamp");
+            if (time != null)
+            {
+                sec = time.get("secondsPastEpoch");
+                nano = time.get("nanoseconds");
+                user = time.get("userTag");
+            }
+            else
+            {
+                sec = null;
+                nano = user = null;
+            }
+        }
 
-        final PVAStructure time = struct.get("timeStamp");
-        if (time != null)
+        /** @param changes Changes of a monitor update, <code>null</code> if unknown,
+         *                 which decodes without building the change mask
+         *  @return {@link Time} for current content
+         */
+        Time decode(final BitSet changes)
         {
-            final PVALong sec = time.get("secondsPastEpoch");
-            final PVAInt nano = time.get("nanoseconds");
+            if (changes == null)
+                return last = decode();
+            if (mask == null)
+                mask = new ChangeMask(top, sec, nano, user);
+            if (last == null  ||  mask.isChanged(changes))
+                last = decode();
+            return last;
+        }
+
+        /** @return {@link Time} for current content */
+        Time decode()
+        {
+            final Instant timestamp;
             if (sec == null || nano == null)
                 timestamp = NO_TIME;
             else
                 timestamp = Instant.ofEpochSecond(sec.get(), nano.get());
-            final PVAInt user = time.get("userTag");
-            usertag = user == null ? NO_USERTAG : user.get();
+            final Integer usertag = user == null ? NO_USERTAG : user.get();
+            return Time.of(timestamp, usertag, timestamp.getEpochSecond() > 0);
         }
-        else
+    }
+
+    /** Located fields of display_t, control_t and valueAlarm_t */
+    static class DisplayFields
+    {
+        private final PVAStructure top;
+        private final boolean has_display;
+        private final PVAString units, format;
+        private final PVAInt precision, form_index;
+        private final boolean has_form;
+        private final PVANumber display_low, display_high;
+        private final boolean has_control;
+        private final PVANumber control_low, control_high;
+        private final boolean has_value_alarm;
+        private final PVANumber alarm_low, alarm_high, warn_low, warn_high;
+        private ChangeMask mask = null;
+        private Display last = null;
+
+        /** @param top Top-level structure received from server
+         *  @param struct Structure that may contain 'display', 'control', 'valueAlarm'
+         */
+        DisplayFields(final PVAStructure top, final PVAStructure struct)
         {
-            timestamp = NO_TIME;
-            usertag = NO_USERTAG;
+            this.top = top;
+            PVAStructure section = struct.get("display");
+            has_display = section != null;
+            if (has_display)
+            {
+                units = section.get("units");
+                // Since EPICS Base 7.0.2.2, qsrv supports 'precision' and 'form'
+                precision = section.get("precision");
+                final PVAStructure form = section.get("form");
+                has_form = form != null;
+                form_index = has_form ? form.get("index") : null;
+                // Earlier PV servers sent 'format' string
+                format = section.get("format");
+                display_low = section.get("limitLow");
+                display_high = section.get("limitHigh");
+            }
+            else
+            {
+                units = format = null;
+                precision = form_index = null;
+                has_form = false;
+                display_low = display_high = null;
+            }
+
+            section = struct.get("control");
+            has_control = section != null;
+            control_low = has_control ? section.get("limitLow") : null;
+            control_high = has_control ? section.get("limitHigh") : null;
+
+            section = struct.get("valueAlarm");
+            has_value_alarm = section != null;
+            if (has_value_alarm)
+            {
+                alarm_low = section.get("lowAlarmLimit");
+                alarm_high = section.get("highAlarmLimit");
+                warn_low = section.get("lowWarningLimit");
+                warn_high = section.get("highWarningLimit");
+            }
+            else
+                alarm_low = alarm_high = warn_low = warn_high = null;
         }
-        return Time.of(timestamp, usertag, timestamp.getEpochSecond() > 0);
+
+        /** @param changes Changes of a monitor update, <code>null</code> if unknown,
+         *                 which decodes without building the change mask
+         *  @return {@link Display} for current content
+         */
+        Display decode(final BitSet changes)
+        {
+            if (changes == null)
+                return last = decode();
+            if (mask == null)
+                mask = new ChangeMask(top, units, format, precision, form_index,
+                                      display_low, display_high, control_low, control_high,
+                                      alarm_low, alarm_high, warn_low, warn_high);
+            if (last == null  ||  mask.isChanged(changes))
+                last = decode();
+            return last;
+        }
+
+        /** @return {@link Display} for current content */
+        Display decode()
+        {
+            final String units;
+            final int format, prec;
+            final String printf;
+
+            // Decode display_t display
+            if (has_display)
+            {
+                units = this.units == null ? noDisplay.getUnit() : this.units.get();
+
+                if (precision != null)
+                {
+                    prec = precision.get();
+                    if (has_form)
+                    {
+                        final int idx = form_index == null ? 0 : form_index.get();
+                        // idx = ["Default", "String", "Binary", "Decimal", "Hex", "Exponential", "Engineering"]
+                        // XXX VType doesn't offer a good way to pass the 'form' options on.
+                        //     This format is later mostly ignored, only precision is recovered.
+                        switch (idx)
+                        {
+                        case 4:
+                            format = DisplayCache.FORMAT_HEX;
+                            break;
+                        case 5:
+                        case 6:
+                            format = DisplayCache.FORMAT_EXPONENTIAL;
+                            break;
+                        default:
+                            format = DisplayCache.FORMAT_PRECISION;
+                        }
+                    }
+                    else
+                        format = DisplayCache.FORMAT_PRECISION;
+                    printf = null;
+                }
+                else
+                {
+                    prec = 0;
+                    printf = this.format == null ? null : this.format.get();
+                    format = printf == null ? DisplayCache.FORMAT_DEFAULT : DisplayCache.FORMAT_PRINTF;
+                }
+            }
+            else
+            {
+                units = noDisplay.getUnit();
+                format = DisplayCache.FORMAT_DEFAULT;
+                prec = 0;
+                printf = null;
+            }
+
+            // Shared Display for identical display_t, control_t, valueAlarm_t
+            return DisplayCache.get(new DisplayCache.Key(has_display, units, format, prec, printf,
+                                                         getDoubleValue(display_low, Double.NaN),
+                                                         getDoubleValue(display_high, Double.NaN),
+                                                         has_control,
+                                                         getDoubleValue(control_low, Double.NaN),
+                                                         getDoubleValue(control_high, Double.NaN),
+                                                         has_value_alarm,
+                                                         getDoubleValue(alarm_low, Double.NaN),
+                                                         getDoubleValue(alarm_high, Double.NaN),
+                                                         getDoubleValue(warn_low, Double.NaN),
+                                                         getDoubleValue(warn_high, Double.NaN)));
+        }
+    }
+
+    /** @param severity 'severity' of alarm_t, may be <code>null</code>
+     *  @param status 'status' of alarm_t, may be <code>null</code>
+     *  @param message 'message' of alarm_t, may be <code>null</code>
+     *  @return Shared {@link Alarm}
+     */
+    private static Alarm decodeAlarm(final PVAInt severity, final PVAInt status, final PVAString message)
+    {
+        return AlarmCache.get(severity == null
+                              ? AlarmSeverity.UNDEFINED
+                              : AlarmCache.getSeverity(severity.get()),
+                              status == null
+                              ? AlarmStatus.UNDEFINED
+                              : AlarmCache.getStatus(status.get()),
+                              message == null ? "<null>" : message.get());
+    }
+
+    /** @param struct Structure that may contain 'alarm'
+     *  @return Shared {@link Alarm}
+     */
+    public static Alarm decodeAlarm(final PVAStructure struct)
+    {
+        final PVAStructure alarm = struct.get("alarm");
+        if (alarm == null)
+            return NO_ALARM;
+        return decodeAlarm(alarm.get("severity"), alarm.get("status"), alarm.get("message"));
+    }
+
+    static Time decodeTime(final PVAStructure struct)
+    {
+        return new TimeFields(struct, struct).decode();
     }
 
     /** @param printfFormat Format from NTScalar display.format
      *  @return Suitable NumberFormat
      */
-    private static NumberFormat createNumberFormat(final String printfFormat)
+    static NumberFormat createNumberFormat(final String printfFormat)
     {
         if (printfFormat == null ||
             printfFormat.trim().isEmpty() ||
@@ -230,85 +465,7 @@ public class Decoders
 
     private static Display decodeDisplay(final PVAStructure struct)
     {
-        String units;
-        NumberFormat format;
-        Range display, control, alarm, warn;
-
-        // Decode display_t display
-        PVAStructure section = struct.get("display");
-        if (section != null)
-        {
-            PVAString str = section.get("units");
-            units = str == null ? noDisplay.getUnit() : str.get();
-
-            // Since EPICS Base 7.0.2.2, qsrv supports 'precision' and 'form'
-            final PVAInt prec = section.get("precision");
-            if (prec != null)
-            {
-                final PVAStructure form = section.get("form");
-                if (form != null)
-                {
-                    final PVAInt pv_idx = form.get("index");
-                    final int idx = pv_idx == null ? 0 : pv_idx.get();
-                    // idx = ["Default", "String", "Binary", "Decimal", "Hex", "Exponential", "Engineering"]
-                    // XXX VType doesn't offer a good way to pass the 'form' options on.
-                    //     This format is later mostly ignored, only precision is recovered.
-                    switch (idx)
-                    {
-                    case 4:
-                        format = createNumberFormat("0x%X");
-                        break;
-                    case 5:
-                    case 6:
-                        format = createNumberFormat("%." + prec.get() + "E");
-                        break;
-                    default:
-                        format = NumberFormats.precisionFormat(prec.get());
-                    }
-                }
-                else
-                    format = NumberFormats.precisionFormat(prec.get());
-            }
-            else
-            {
-                // Earlier PV servers sent 'format' string
-                str = section.get("format");
-                format = str == null
-                    ? noDisplay.getFormat()
-                    : createNumberFormat(str.get());
-            }
-
-            display = Range.of(getDoubleValue(section, "limitLow", Double.NaN),
-                               getDoubleValue(section, "limitHigh", Double.NaN));
-        }
-        else
-        {
-            units = noDisplay.getUnit();
-            format = noDisplay.getFormat();
-            display = Range.undefined();
-        }
-
-        // Decode control_t control
-        section = struct.get("control");
-        if (section != null)
-            control = Range.of(getDoubleValue(section, "limitLow", Double.NaN),
-                               getDoubleValue(section, "limitHigh", Double.NaN));
-        else
-            control = Range.undefined();
-
-        // Decode valueAlarm_t valueAlarm
-        section = struct.get("valueAlarm");
-        if (section != null)
-        {
-            alarm = Range.of(getDoubleValue(section, "lowAlarmLimit", Double.NaN),
-                             getDoubleValue(section, "highAlarmLimit", Double.NaN));
-            warn = Range.of(getDoubleValue(section, "lowWarningLimit", Double.NaN),
-                            getDoubleValue(section, "highWarningLimit", Double.NaN));
-        }
-        else
-            alarm = warn = Range.undefined();
-
-        return Display.of(display, alarm, warn, control, units, format);
+        return new DisplayFields(struct, struct).decode();
     }
 
     public static VType decodeString(PVAStructure struct, PVAString field)
@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.text.NumberFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.epics.util.stats.Range;
+import org.epics.util.text.NumberFormats;
+import org.epics.vtype.Display;
+
+/** Cache of {@link Display} information
+ *
+ *  <p>Many PVs share the same units, limits and precision.
+ *  Returns one shared {@link Display} for identical
+ *  display_t, control_t and valueAlarm_t content.
+ *
+ *  <p>Size is limited, least recently used entries are evicted.
+ *  Maximum size can be set via the system property
+ *  <code>org.phoebus.pv.npva.display_cache_size</code>,
+ *  0 to disable the cache.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class DisplayCache
+{
+    /** Maximum number of cached entries */
+    private static final int MAX_SIZE = Integer.getInteger("org.phoebus.pv.npva.display_cache_size", 10000);
+
+    private static final LongAdder hits = new LongAdder(),
+                                   misses = new LongAdder(),
+                                   evictions = new LongAdder();
+
+    /** Access-ordered map, i.e. LRU cache. SYNC on access */
+    private static final Map<Key, Display> cache = new LinkedHashMap<>(1000, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Key, Display> eldest)
+        {
+            if (size() <= MAX_SIZE)
+                return false;
+            evictions.increment();
+            return true;
+        }
+    };
+
+    /** Format options */
+    static final int FORMAT_DEFAULT = 0,
+                     FORMAT_PRECISION = 1,
+                     FORMAT_HEX = 2,
+                     FORMAT_EXPONENTIAL = 3,
+                     FORMAT_PRINTF = 4;
+
+    /** Content of display_t, control_t and valueAlarm_t */
+    static final class Key
+    {
+        private final boolean has_display, has_control, has_value_alarm;
+        private final String units;
+        private final int format, precision;
+        private final String printf;
+        private final double display_low, display_high,
+                             control_low, control_high,
+                             alarm_low, alarm_high,
+                             warn_low, warn_high;
+        private final int hash;
+
+        /** @param has_display Is there a display_t?
+         *  @param units Units
+         *  @param format Format option, FORMAT_DEFAULT etc.
+         *  @param precision Precision for FORMAT_PRECISION, FORMAT_EXPONENTIAL
+         *  @param printf Format for FORMAT_PRINTF
+         *  @param display_low Display range
+         *  @param display_high Display range
+         *  @param has_control Is there a control_t?
+         *  @param control_low Control range
+         *  @param control_high Control range
+         *  @param has_value_alarm Is there a valueAlarm_t?
+         *  @param alarm_low Alarm range
+         *  @param alarm_high Alarm range
+         *  @param warn_low Warning range
+         *  @param warn_high Warning range
+         */
+        Key(final boolean has_display, final String units,
+            final int format, final int precision, final String printf,
+            final double display_low, final double display_high,
+            final boolean has_control,
+            final double control_low, final double control_high,
+            final boolean has_value_alarm,
+            final double alarm_low, final double alarm_high,
+            final double warn_low, final double warn_high)
+        {
+            this.has_display = has_display;
+            this.units = units;
+            this.format = format;
+            this.precision = precision;
+            this.printf = printf;
+            this.display_low = display_low;
+            this.display_high = display_high;
+            this.has_control = has_control;
+            this.control_low = control_low;
+            this.control_high = control_high;
+            this.has_value_alarm = has_value_alarm;
+            this.alarm_low = alarm_low;
+            this.alarm_high = alarm_high;
+            this.warn_low = warn_low;
+            this.warn_high = warn_high;
+
+            int h = Boolean.hashCode(has_display);
+            h = 31*h + (units == null ? 0 : units.hashCode());
+            h = 31*h + format;
+            h = 31*h + precision;
+            h = 31*h + (printf == null ? 0 : printf.hashCode());
+            h = 31*h + Double.hashCode(display_low);
+            h = 31*h + Double.hashCode(display_high);
+            h = 31*h + Boolean.hashCode(has_control);
+            h = 31*h + Double.hashCode(control_low);
+            h = 31*h + Double.hashCode(control_high);
+            h = 31*h + Boolean.hashCode(has_value_alarm);
+            h = 31*h + Double.hashCode(alarm_low);
+            h = 31*h + Double.hashCode(alarm_high);
+            h = 31*h + Double.hashCode(warn_low);
+            h = 31*h + Double.hashCode(warn_high);
+            hash = h;
+        }
+
+        private static boolean same(final double a, final double b)
+        {
+            return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+        }
+
+        private static boolean same(final String a, final String b)
+        {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj)
+        {
+            if (obj == this)
+                return true;
+            if (! (obj instanceof Key))
+                return false;
+            final Key other = (Key) obj;
+            return hash == other.hash &&
+                   has_display == other.has_display &&
+                   has_control == other.has_control &&
+                   has_value_alarm == other.has_value_alarm &&
+                   format == other.format &&
+                   precision == other.precision &&
+                   same(units, other.units) &&
+                   same(printf, other.printf) &&
+                   same(display_low, other.display_low) &&
+                   same(display_high, other.display_high) &&
+                   same(control_low, other.control_low) &&
+                   same(control_high, other.control_high) &&
+                   same(alarm_low, other.alarm_low) &&
+                   same(alarm_high, other.alarm_high) &&
+                   same(warn_low, other.warn_low) &&
+                   same(warn_high, other.warn_high);
+        }
+
+        private NumberFormat createFormat()
+        {
+            switch (format)
+            {
+            case FORMAT_PRECISION:
+                return NumberFormats.precisionFormat(precision);
+            case FORMAT_HEX:
+                return Decoders.createNumberFormat("0x%X");
+            case FORMAT_EXPONENTIAL:
+                return Decoders.createNumberFormat("%." + precision + "E");
+            case FORMAT_PRINTF:
+                return Decoders.createNumberFormat(printf);
+            default:
+                return Decoders.noDisplay.getFormat();
+            }
+        }
+
+        /** @return {@link Display} for this content */
+        Display createDisplay()
+        {
+            final Range display = has_display ? Range.of(display_low, display_high) : Range.undefined();
+            final Range control = has_control ? Range.of(control_low, control_high) : Range.undefined();
+            final Range alarm, warn;
+            if (has_value_alarm)
+            {
+                alarm = Range.of(alarm_low, alarm_high);
+                warn = Range.of(warn_low, warn_high);
+            }
+            else
+                alarm = warn = Range.undefined();
+            return Display.of(display, alarm, warn, control, units, createFormat());
+        }
+    }
+
+    /** @param key Display content
+     *  @return Shared {@link Display} for that content
+     */
+    static Display get(final Key key)
+    {
+        if (MAX_SIZE <= 0)
+            return key.createDisplay();
+
+        synchronized (cache)
+        {
+            final Display display = cache.get(key);
+            if (display != null)
+            {
+                hits.increment();
+                return display;
+            }
+        }
+        // Create outside of lock.
+        // Another thread might create the same display,
+        // which is OK since both are equal.
+        misses.increment();
+        final Display display = key.createDisplay();
+        synchronized (cache)
+        {
+            final Display existing = cache.putIfAbsent(key, display);
+            return existing != null ? existing : display;
+        }
+    }
+
+    /** @return Number of cached {@link Display} entries */
+    public static int getSize()
+    {
+        synchronized (cache)
+        {
+            return cache.size();
+        }
+    }
+
+    /** @return Number of lookups that returned a cached {@link Display} */
+    public static long getHits()
+    {
+        return hits.sum();
+    }
+
+    /** @return Number of lookups that had to create a new {@link Display} */
+    public static long getMisses()
+    {
+        return misses.sum();
+    }
+
+    /** @return Number of entries removed because the cache was full */
+    public static long getEvictions()
+    {
+        return evictions.sum();
+    }
+
+    /** Remove all cached entries, reset statistics */
+    public static void clear()
+    {
+        synchronized (cache)
+        {
+            cache.clear();
+        }
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    /** @return Debug representation */
+    public static String getInfo()
+    {
+        return "Display cache: " + getSize() + " of max. " + MAX_SIZE + " entries, " +
+               getHits() + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions";
+    }
+}
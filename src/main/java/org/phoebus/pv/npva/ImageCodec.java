@@ -0,0 +1,460 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.epics.pva.data.PVAByteArray;
+import org.epics.pva.data.PVAData;
+import org.epics.pva.data.PVANumber;
+import org.epics.pva.data.PVAString;
+import org.epics.pva.data.PVAStructure;
+import org.epics.pva.data.PVAUnion;
+import org.epics.pva.data.PVAny;
+import org.epics.vtype.VImageDataType;
+
+/** Decompression of codec-compressed NTNDArray pixels
+ *
+ *  <p>The areaDetector codec plugin compresses the pixels into a 'ubyte[]' value,
+ *  sets the 'codec.name' and places the original data type into 'codec.parameters'.
+ *  Supported codecs:
+ *  <ul>
+ *  <li>"lz4": One LZ4 block
+ *  <li>"bslz4": Bitshuffle with LZ4 compressed blocks, without header
+ *  <li>"zlib": zlib stream
+ *  </ul>
+ *
+ *  <p>The decompressed bytes use the byte order of the IOC,
+ *  which can be set via <code>org.phoebus.pv.npva.codec_byte_order</code>,
+ *  default <code>LITTLE_ENDIAN</code>.
+ *
+ *  <p>Bitshuffle blocks are decompressed in parallel when the frame has more than
+ *  <code>org.phoebus.pv.npva.codec_parallel_bytes</code> bytes, 0 to disable.
+ *
+ *  <p>Each frame is decompressed into a new pixel array, taken from the {@link ArrayPool}
+ *  when it is enabled, so a delivered image never changes afterwards.
+ *  Only the intermediate byte buffer for pixels wider than one byte
+ *  is kept for the next frame, it is never handed out.
+ *  An {@link ImageCodec} must only be used by one thread at a time.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+class ImageCodec
+{
+    /** Byte order of decompressed pixels */
+    private static final ByteOrder BYTE_ORDER = "BIG_ENDIAN".equals(System.getProperty("org.phoebus.pv.npva.codec_byte_order"))
+                                              ? ByteOrder.BIG_ENDIAN
+                                              : ByteOrder.LITTLE_ENDIAN;
+
+    /** Number of bytes above which bitshuffle blocks are decompressed in parallel */
+    private static final int PARALLEL_BYTES = Integer.getInteger("org.phoebus.pv.npva.codec_parallel_bytes", 1024*1024);
+
+    /** areaDetector NDDataType_t, by ordinal */
+    private static final VImageDataType[] DATA_TYPES =
+    {
+        VImageDataType.pvByte,  VImageDataType.pvUByte,
+        VImageDataType.pvShort, VImageDataType.pvUShort,
+        VImageDataType.pvInt,   VImageDataType.pvUInt,
+        VImageDataType.pvLong,  VImageDataType.pvULong,
+        VImageDataType.pvFloat, VImageDataType.pvDouble
+    };
+
+    /** Bytes per element for each of the DATA_TYPES */
+    private static final int[] ELEMENT_SIZES = { 1, 1, 2, 2, 4, 4, 8, 8, 4, 8 };
+
+    /** Default bitshuffle block size in bytes */
+    private static final int BSHUF_TARGET_BLOCK_SIZE = 8192;
+
+    /** Minimum bitshuffle block size in elements */
+    private static final int BSHUF_MIN_BLOCK = 128;
+
+    /** Per-thread buffer for one bitshuffle block */
+    private static final ThreadLocal<byte[]> shuffled_block = ThreadLocal.withInitial(() -> new byte[BSHUF_TARGET_BLOCK_SIZE]);
+
+    /** Decompressed bytes before conversion into wider pixels, re-used */
+    private byte[] bytes = new byte[0];
+
+    /** zlib decompressor, re-used */
+    private Inflater inflater;
+
+    /** Decompressed pixels */
+    static class Result
+    {
+        /** Primitive array of pixels */
+        final Object pixels;
+        final VImageDataType data_type;
+        final boolean unsigned;
+
+        Result(final Object pixels, final int type)
+        {
+            this.pixels = pixels;
+            this.data_type = DATA_TYPES[type];
+            // Odd types up to NDUInt64 are unsigned
+            this.unsigned = type < 8  &&  (type & 1) == 1;
+        }
+    }
+
+    /** @param struct NTNDArray
+     *  @return Name of codec, <code>null</code> if pixels are not compressed
+     */
+    static String getCodec(final PVAStructure struct)
+    {
+        final PVAStructure codec = struct.get("codec");
+        if (codec == null)
+            return null;
+        final PVAString name = codec.get("name");
+        if (name == null  ||  name.get() == null  ||  name.get().isEmpty())
+            return null;
+        return name.get();
+    }
+
+    /** @param struct NTNDArray with compressed 'value'
+     *  @param codec Codec name
+     *  @return {@link Result}
+     *  @throws Exception on error
+     */
+    Result decompress(final PVAStructure struct, final String codec) throws Exception
+    {
+        // Original data type
+        final PVAStructure codec_field = struct.get("codec");
+        final PVAny parameters = codec_field.get("parameters");
+        final PVAData type_field = parameters == null ? null : parameters.get();
+        if (! (type_field instanceof PVANumber))
+            throw new Exception("Missing data type in codec.parameters, got " + type_field);
+        final int type = ((PVANumber) type_field).getNumber().intValue();
+        if (type < 0  ||  type >= DATA_TYPES.length)
+            throw new Exception("Unknown codec data type " + type);
+        final int element_size = ELEMENT_SIZES[type];
+
+        final PVANumber size_field = struct.get("uncompressedSize");
+        if (size_field == null)
+            throw new Exception("Missing uncompressedSize");
+        final long size = size_field.getNumber().longValue();
+        if (size < 0  ||  size > Integer.MAX_VALUE  ||  size % element_size != 0)
+            throw new Exception("Invalid uncompressedSize " + size + " for elements of " + element_size + " bytes");
+
+        final PVAData value = struct.<PVAUnion>get("value").get();
+        if (! (value instanceof PVAByteArray))
+            throw new Exception("Expected byte[] for compressed value, got " + value);
+        final byte[] compressed = ((PVAByteArray) value).get();
+
+        // Byte pixels are decompressed right into the pixel array,
+        // others into the byte buffer, then converted
+        final byte[] output;
+        if (element_size == 1)
+            output = getPixels(byte[].class, (int) size);
+        else
+        {
+            if (bytes.length != size)
+                bytes = new byte[(int) size];
+            output = bytes;
+        }
+
+        switch (codec)
+        {
+        case "lz4":
+            decompressLZ4(compressed, 0, compressed.length, output, 0, output.length);
+            break;
+        case "bslz4":
+            decompressBitshuffleLZ4(compressed, output, element_size);
+            break;
+        case "zlib":
+            inflate(compressed, output);
+            break;
+        default:
+            throw new Exception("Unsupported codec '" + codec + "'");
+        }
+
+        if (element_size == 1)
+            return new Result(output, type);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(output).order(BYTE_ORDER);
+        final int count = output.length / element_size;
+        final Object result;
+        switch (DATA_TYPES[type])
+        {
+        case pvShort:
+        case pvUShort:
+        {
+            final short[] data = getPixels(short[].class, count);
+            buffer.asShortBuffer().get(data);
+            result = data;
+            break;
+        }
+        case pvInt:
+        case pvUInt:
+        {
+            final int[] data = getPixels(int[].class, count);
+            buffer.asIntBuffer().get(data);
+            result = data;
+            break;
+        }
+        case pvLong:
+        case pvULong:
+        {
+            final long[] data = getPixels(long[].class, count);
+            buffer.asLongBuffer().get(data);
+            result = data;
+            break;
+        }
+        case pvFloat:
+        {
+            final float[] data = getPixels(float[].class, count);
+            buffer.asFloatBuffer().get(data);
+            result = data;
+            break;
+        }
+        default:
+        {
+            final double[] data = getPixels(double[].class, count);
+            buffer.asDoubleBuffer().get(data);
+            result = data;
+        }
+        }
+        return new Result(result, type);
+    }
+
+    /** @param type Primitive array type
+     *  @param count Number of elements
+     *  @return Array from {@link ArrayPool} when enabled, otherwise new array
+     */
+    private static <T> T getPixels(final Class<T> type, final int count)
+    {
+        return ArrayPool.get(type, count);
+    }
+
+    /** @param compressed zlib stream
+     *  @param output Buffer for decompressed data
+     *  @throws Exception on error
+     */
+    private void inflate(final byte[] compressed, final byte[] output) throws Exception
+    {
+        if (inflater == null)
+            inflater = new Inflater();
+        else
+            inflater.reset();
+        inflater.setInput(compressed);
+        try
+        {
+            int done = 0;
+            while (done < output.length)
+            {
+                final int n = inflater.inflate(output, done, output.length - done);
+                if (n == 0  &&  (inflater.finished()  ||  inflater.needsInput()  ||  inflater.needsDictionary()))
+                    break;
+                done += n;
+            }
+            if (done != output.length)
+                throw new Exception("zlib data decompressed into " + done + " instead of " + output.length + " bytes");
+        }
+        catch (DataFormatException ex)
+        {
+            throw new Exception("Invalid zlib data", ex);
+        }
+    }
+
+    /** Decompress LZ4 block
+     *
+     *  @param src Compressed data
+     *  @param src_start Start of block
+     *  @param src_end End of block
+     *  @param dst Buffer for decompressed data
+     *  @param dst_start Start of output
+     *  @param dst_length Expected number of decompressed bytes
+     *  @throws Exception on error
+     */
+    static void decompressLZ4(final byte[] src, final int src_start, final int src_end,
+                              final byte[] dst, final int dst_start, final int dst_length) throws Exception
+    {
+        final int dst_end = dst_start + dst_length;
+        int s = src_start, d = dst_start;
+        try
+        {
+            while (true)
+            {
+                final int token = src[s++] & 0xFF;
+
+                // Literals
+                int length = token >>> 4;
+                if (length == 15)
+                {
+                    int extra;
+                    do
+                    {
+                        extra = src[s++] & 0xFF;
+                        length += extra;
+                    }
+                    while (extra == 255);
+                }
+                if (s + length > src_end  ||  d + length > dst_end)
+                    throw new Exception("LZ4 literals exceed block");
+                System.arraycopy(src, s, dst, d, length);
+                s += length;
+                d += length;
+                // Last sequence only has literals
+                if (s >= src_end)
+                    break;
+
+                // Match
+                final int offset = (src[s] & 0xFF) | (src[s+1] & 0xFF) << 8;
+                s += 2;
+                if (offset == 0  ||  d - offset < dst_start)
+                    throw new Exception("Invalid LZ4 match offset " + offset);
+                length = token & 0x0F;
+                if (length == 15)
+                {
+                    int extra;
+                    do
+                    {
+                        extra = src[s++] & 0xFF;
+                        length += extra;
+                    }
+                    while (extra == 255);
+                }
+                length += 4;
+                if (d + length > dst_end)
+                    throw new Exception("LZ4 match exceeds block");
+                int m = d - offset;
+                if (offset >= length)
+                    System.arraycopy(dst, m, dst, d, length);
+                else // Overlapping match repeats the last 'offset' bytes
+                    for (int i=0; i<length; ++i)
+                        dst[d + i] = dst[m + i];
+                d += length;
+            }
+        }
+        catch (ArrayIndexOutOfBoundsException ex)
+        {
+            throw new Exception("Truncated LZ4 block", ex);
+        }
+        if (d != dst_end)
+            throw new Exception("LZ4 block decompressed into " + (d - dst_start) + " instead of " + dst_length + " bytes");
+    }
+
+    /** Decompress bitshuffle/LZ4 data as created by <code>bshuf_compress_lz4</code>
+     *
+     *  <p>Sequence of blocks, each with a 4 byte big endian compressed size
+     *  and an LZ4 block of bit-shuffled elements.
+     *  Elements that do not fill a group of 8 are appended without compression.
+     *
+     *  @param src Compressed data
+     *  @param dst Buffer for decompressed data
+     *  @param element_size Bytes per element
+     *  @throws Exception on error
+     */
+    static void decompressBitshuffleLZ4(final byte[] src, final byte[] dst, final int element_size) throws Exception
+    {
+        final int elements = dst.length / element_size;
+        final int block_size = Math.max(BSHUF_MIN_BLOCK, BSHUF_TARGET_BLOCK_SIZE / element_size / 8 * 8);
+        final int last_block = elements % block_size / 8 * 8;
+        final int blocks = elements / block_size + (last_block > 0 ? 1 : 0);
+
+        // Locate the blocks
+        final int[] starts = new int[blocks];
+        int s = 0;
+        for (int b=0; b<blocks; ++b)
+        {
+            if (s + 4 > src.length)
+                throw new Exception("Truncated bitshuffle data");
+            final int compressed = (src[s] & 0xFF) << 24 | (src[s+1] & 0xFF) << 16 | (src[s+2] & 0xFF) << 8 | (src[s+3] & 0xFF);
+            starts[b] = s + 4;
+            s += 4 + compressed;
+            if (compressed < 0  ||  s > src.length)
+                throw new Exception("Invalid bitshuffle block size " + compressed);
+        }
+        final int leftover = (elements - elements / block_size * block_size - last_block) * element_size;
+        if (s + leftover != src.length)
+            throw new Exception("Bitshuffle data has " + src.length + " instead of " + (s + leftover) + " bytes");
+        System.arraycopy(src, s, dst, dst.length - leftover, leftover);
+
+        final Block block = b ->
+        {
+            final int count = (b == elements / block_size) ? last_block : block_size;
+            final int end = b+1 < blocks ? starts[b+1] - 4 : src.length - leftover;
+            final byte[] shuffled = shuffled_block.get();
+            decompressLZ4(src, starts[b], end, shuffled, 0, count * element_size);
+            unshuffle(shuffled, count, element_size, dst, b * block_size * element_size);
+        };
+        if (PARALLEL_BYTES > 0  &&  dst.length > PARALLEL_BYTES  &&  blocks > 1)
+        {
+            try
+            {
+                IntStream.range(0, blocks).parallel().forEach(b ->
+                {
+                    try
+                    {
+                        block.decompress(b);
+                    }
+                    catch (Exception ex)
+                    {
+                        throw new IllegalStateException(ex);
+                    }
+                });
+            }
+            catch (IllegalStateException ex)
+            {
+                if (ex.getCause() instanceof Exception)
+                    throw (Exception) ex.getCause();
+                throw ex;
+            }
+        }
+        else
+            for (int b=0; b<blocks; ++b)
+                block.decompress(b);
+    }
+
+    /** Decompresses one block */
+    @FunctionalInterface
+    private interface Block
+    {
+        /** @param block Index of block
+         *  @throws Exception on error
+         */
+        void decompress(int block) throws Exception;
+    }
+
+    /** Reverse the bitshuffle of a block
+     *
+     *  <p>The shuffled block holds 8 * element_size rows of count/8 bytes.
+     *  Row <code>8*j + k</code> has bit k of byte j of all elements,
+     *  element i in bit i%8 of byte i/8.
+     *
+     *  @param shuffled Shuffled block
+     *  @param count Number of elements in block, multiple of 8
+     *  @param element_size Bytes per element
+     *  @param dst Buffer for elements
+     *  @param start Start of block in output buffer
+     */
+    static void unshuffle(final byte[] shuffled, final int count, final int element_size,
+                          final byte[] dst, final int start)
+    {
+        final int row_size = count / 8;
+        for (int j=0; j<element_size; ++j)
+            for (int g=0; g<row_size; ++g)
+            {
+                // Gather bit k of byte j of elements 8g..8g+7 from row 8j+k into byte k
+                long x = 0;
+                for (int k=0; k<8; ++k)
+                    x |= (shuffled[(8*j + k) * row_size + g] & 0xFFL) << (8*k);
+                // Transpose 8x8 bit matrix, so byte i holds the bits of element 8g+i
+                long t = (x ^ (x >>> 7)) & 0x00AA00AA00AA00AAL;
+                x = x ^ t ^ (t << 7);
+                t = (x ^ (x >>> 14)) & 0x0000CCCC0000CCCCL;
+                x = x ^ t ^ (t << 14);
+                t = (x ^ (x >>> 28)) & 0x00000000F0F0F0F0L;
+                x = x ^ t ^ (t << 28);
+                for (int i=0; i<8; ++i)
+                    dst[start + (8*g + i) * element_size + j] = (byte) (x >>> (8*i));
+            }
+    }
+}
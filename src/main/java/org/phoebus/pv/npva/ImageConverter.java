@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.epics.util.array.CollectionNumbers;
+import org.epics.util.array.ListNumber;
+import org.epics.vtype.VImage;
+import org.epics.vtype.VImageType;
+
+/** Conversion of color images into packed ARGB pixels
+ *
+ *  <p>Converts {@link VImage}s of type RGB1, RGB2, RGB3, YUV444, YUV422 and YUV411
+ *  into one <code>int</code> per pixel, <code>0xAARRGGBB</code>,
+ *  as used by <code>BufferedImage.TYPE_INT_ARGB</code> or JavaFX <code>PixelFormat.getIntArgbInstance()</code>.
+ *
+ *  <p>YUV byte order follows the IIDC camera formats:
+ *  UYV for YUV444, UYVY for YUV422, UYYVYY for YUV411.
+ *  For 16 bit pixels, the upper 8 bits are used.
+ *
+ *  <p>This is a scalar fast path: The loops read the primitive pixel array
+ *  that the image wraps, without boxing or per-pixel virtual calls,
+ *  and use fixed-point integer arithmetic instead of floating point.
+ *  Large images are converted in parallel by bands of rows, see {@link ImageProcessing}.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class ImageConverter
+{
+    /** Converts a band of rows */
+    @FunctionalInterface
+    private interface Rows
+    {
+        /** @param first First row
+         *  @param last Last row, exclusive
+         */
+        void convert(int first, int last);
+    }
+
+    /** @param image Color image
+     *  @param buffer Buffer to use if it has at least width * height elements, may be <code>null</code>
+     *  @return ARGB pixels, row by row
+     *  @throws Exception on error
+     */
+    public static int[] toARGB(final VImage image, final int[] buffer) throws Exception
+    {
+        final int width = image.getWidth(), height = image.getHeight();
+        final int size = width * height;
+        final int[] argb = buffer != null  &&  buffer.length >= size ? buffer : new int[size];
+        final byte[] data = getBytes(image.getData());
+        final VImageType type = image.getVImageType();
+
+        final int needed;
+        final Rows rows;
+        switch (type)
+        {
+        case TYPE_RGB1:
+            needed = 3 * size;
+            rows = (first, last) ->
+            {
+                for (int i = first * width, s = 3 * i, end = last * width;  i < end;  ++i, s += 3)
+                    argb[i] = 0xFF000000 | (data[s] & 0xFF) << 16 | (data[s+1] & 0xFF) << 8 | (data[s+2] & 0xFF);
+            };
+            break;
+        case TYPE_RGB2:
+            needed = 3 * size;
+            rows = (first, last) ->
+            {
+                for (int y=first; y<last; ++y)
+                {
+                    final int r = 3 * y * width, g = r + width, b = g + width, o = y * width;
+                    for (int x=0; x<width; ++x)
+                        argb[o+x] = 0xFF000000 | (data[r+x] & 0xFF) << 16 | (data[g+x] & 0xFF) << 8 | (data[b+x] & 0xFF);
+                }
+            };
+            break;
+        case TYPE_RGB3:
+            needed = 3 * size;
+            rows = (first, last) ->
+            {
+                final int g = size, b = 2 * size;
+                for (int i = first * width, end = last * width;  i < end;  ++i)
+                    argb[i] = 0xFF000000 | (data[i] & 0xFF) << 16 | (data[g+i] & 0xFF) << 8 | (data[b+i] & 0xFF);
+            };
+            break;
+        case TYPE_YUV444:
+            needed = 3 * size;
+            rows = (first, last) ->
+            {
+                for (int i = first * width, s = 3 * i, end = last * width;  i < end;  ++i, s += 3)
+                    argb[i] = yuv(data[s+1] & 0xFF, data[s] & 0xFF, data[s+2] & 0xFF);
+            };
+            break;
+        case TYPE_YUV422:
+            if (width % 2 != 0)
+                throw new Exception("YUV422 requires even width, got " + width);
+            needed = 2 * size;
+            rows = (first, last) ->
+            {
+                for (int i = first * width, s = 2 * i, end = last * width;  i < end;  i += 2, s += 4)
+                {
+                    final int u = data[s] & 0xFF, v = data[s+2] & 0xFF;
+                    argb[i]   = yuv(data[s+1] & 0xFF, u, v);
+                    argb[i+1] = yuv(data[s+3] & 0xFF, u, v);
+                }
+            };
+            break;
+        case TYPE_YUV411:
+            if (width % 4 != 0)
+                throw new Exception("YUV411 requires width that's a multiple of 4, got " + width);
+            needed = size / 2 * 3;
+            rows = (first, last) ->
+            {
+                for (int i = first * width, s = i / 2 * 3, end = last * width;  i < end;  i += 4, s += 6)
+                {
+                    final int u = data[s] & 0xFF, v = data[s+3] & 0xFF;
+                    argb[i]   = yuv(data[s+1] & 0xFF, u, v);
+                    argb[i+1] = yuv(data[s+2] & 0xFF, u, v);
+                    argb[i+2] = yuv(data[s+4] & 0xFF, u, v);
+                    argb[i+3] = yuv(data[s+5] & 0xFF, u, v);
+                }
+            };
+            break;
+        default:
+            throw new Exception("Cannot convert " + type + " image to ARGB");
+        }
+        if (data.length < needed)
+            throw new Exception(type + " image " + width + "x" + height + " needs " + needed + " bytes, got " + data.length);
+
+        final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (ImageProcessing.PARALLEL_PIXELS <= 0  ||  size <= ImageProcessing.PARALLEL_PIXELS  ||  parallelism <= 1  ||  height < 2)
+            rows.convert(0, height);
+        else
+        {
+            final int bands = Math.min(height, 2 * parallelism);
+            IntStream.range(0, bands)
+                     .parallel()
+                     .forEach(b -> rows.convert(b * height / bands, (b+1) * height / bands));
+        }
+        return argb;
+    }
+
+    /** @param data Pixel data
+     *  @return Bytes of the pixels, wrapped array if possible
+     */
+    private static byte[] getBytes(final ListNumber data)
+    {
+        final Object array = CollectionNumbers.wrappedArray(data);
+        if (array instanceof byte[])
+            return (byte[]) array;
+        final byte[] bytes = new byte[data.size()];
+        if (array instanceof short[])
+        {
+            final short[] shorts = (short[]) array;
+            for (int i=0; i<bytes.length; ++i)
+                bytes[i] = (byte) (shorts[i] >>> 8);
+        }
+        else
+            for (int i=0; i<bytes.length; ++i)
+                bytes[i] = (byte) Math.max(0, Math.min(255, (int) data.getDouble(i)));
+        return bytes;
+    }
+
+    /** ITU-R BT.601 YUV to RGB in 16 bit fixed point
+     *  @param y Luminance 0..255
+     *  @param u Blue difference 0..255
+     *  @param v Red difference 0..255
+     *  @return ARGB
+     */
+    private static int yuv(final int y, final int u, final int v)
+    {
+        final int cu = u - 128, cv = v - 128;
+        final int r = y + ((91881 * cv) >> 16);
+        final int g = y - ((22554 * cu + 46802 * cv) >> 16);
+        final int b = y + ((116130 * cu) >> 16);
+        return 0xFF000000 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    private static int clamp(final int value)
+    {
+        return Math.max(0, Math.min(255, value));
+    }
+}
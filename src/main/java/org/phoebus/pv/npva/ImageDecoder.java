@@ -20,7 +20,6 @@ import org.epics.pva.data.PVAStructure;
 import org.epics.pva.data.PVAStructureArray;
 import org.epics.pva.data.PVAUnion;
 import org.epics.pva.data.PVAny;
-import org.epics.pvdata.pv.PVInt;
 import org.epics.util.array.ArrayByte;
 import org.epics.util.array.ArrayDouble;
 import org.epics.util.array.ArrayFloat;
@@ -36,6 +35,21 @@ import org.epics.vtype.VImageType;
 import org.epics.vtype.VType;
 
 /** VImage from NT ND Array data
+ *
+ *  <p>The pixel data of the {@link VImage} wraps the primitive array
+ *  of the received 'value' without copying or widening it,
+ *  also for unsigned data types.
+ *
+ *  <p>Ownership: Unless the pixels are copied,
+ *  the {@link VImage} of a monitor update is only valid until the next update,
+ *  see {@link DecodePlan}.
+ *
+ *  <p>Compressed pixels are decompressed by the {@link ImageCodec}.
+ *
+ *  <p>When the PV name requests a region of interest, binning or stride,
+ *  the {@link ImageProcessing} creates a new, reduced array of pixels
+ *  before the {@link VImage} is created.
+ *
  *  @author Kay Kasemir
  *  @author Amanda Carpenter - Original code to handle unsigned VImageDataType, detect VImageType
  */
@@ -49,18 +63,36 @@ public class ImageDecoder
             VImageType.TYPE_RGB1, VImageType.TYPE_RGB2, VImageType.TYPE_RGB3, VImageType.TYPE_YUV444,
             VImageType.TYPE_YUV422, VImageType.TYPE_YUV411 };
 
+    /** @param struct NTNDArray
+     *  @return {@link VImage} that wraps the received pixel data
+     *  @throws Exception on error
+     */
     public static VType decode(final PVAStructure struct) throws Exception
+    {
+        return decode(struct, null, null, false);
+    }
+
+    /** @param struct NTNDArray
+     *  @param processing {@link ImageProcessing} or <code>null</code>
+     *  @param codec {@link ImageCodec} with buffers to re-use, or <code>null</code>
+     *  @param copy Copy received pixels that are neither decompressed nor processed?
+     *  @return {@link VImage} that wraps the received, copied, decompressed or processed pixel data
+     *  @throws Exception on error
+     */
+    static VType decode(final PVAStructure struct, final ImageProcessing processing, final ImageCodec codec,
+                        final boolean copy) throws Exception
     {
         // Get dimensions
         final PVAStructureArray dim = struct.get("dimension");
-        if (dim == null || dim.get().length < 2)
+        final PVAStructure[] dims = dim == null ? null : dim.get();
+        if (dims == null || dims.length < 2)
             throw new Exception("Need at least 2 dimensions, got " + dim);
         // Fetching by field name in case structure changes
-        final int n_dims = dim.get().length;
+        final int n_dims = dims.length;
         int dimensions[] = new int[n_dims];
         for (int i = 0; i < n_dims; ++i)
         {
-            final PVAInt size = dim.get()[i].get("size");
+            final PVAInt size = dims[i].get("size");
             dimensions[i] = size.get();
         }
 
@@ -79,9 +111,9 @@ public class ImageDecoder
                 {
                     final PVAny color_mode_field = attribute.get("value");
                     final PVAData cm = color_mode_field.get();
-                    if (cm instanceof PVInt)
+                    if (cm instanceof PVAInt)
                     {
-                        colorMode = ((PVInt) cm).get();
+                        colorMode = ((PVAInt) cm).get();
                         break;
                     }
                     // else: log warning, or throw exception?
@@ -133,60 +165,97 @@ public class ImageDecoder
                 height = dimensions[1];
         }
 
-        // Get data and data type
-        final ListNumber data;
+        // Get pixels and data type
+        final Object pixels;
+        final boolean unsigned;
         final VImageDataType data_type;
-        if (value instanceof PVAByteArray)
+        final String codec_name = ImageCodec.getCodec(struct);
+        if (codec_name != null)
+        {
+            final ImageCodec.Result decompressed = (codec != null ? codec : new ImageCodec()).decompress(struct, codec_name);
+            pixels = decompressed.pixels;
+            unsigned = decompressed.unsigned;
+            data_type = decompressed.data_type;
+        }
+        else if (value instanceof PVAByteArray)
         {
             final PVAByteArray values = (PVAByteArray) value;
-            data = ArrayByte.of(values.get());
-            if (values.isUnsigned())
-                data_type = VImageDataType.pvUByte;
-            else
-                data_type = VImageDataType.pvByte;
+            pixels = values.get();
+            unsigned = values.isUnsigned();
+            data_type = unsigned ? VImageDataType.pvUByte : VImageDataType.pvByte;
         }
         else if (value instanceof PVAShortArray)
         {
             final PVAShortArray values = (PVAShortArray) value;
-            data = ArrayShort.of(values.get());
-            if (values.isUnsigned())
-                data_type = VImageDataType.pvUShort;
-            else
-                data_type = VImageDataType.pvShort;
+            pixels = values.get();
+            unsigned = values.isUnsigned();
+            data_type = unsigned ? VImageDataType.pvUShort : VImageDataType.pvShort;
         }
         else if (value instanceof PVAIntArray)
         {
             final PVAIntArray values = (PVAIntArray) value;
-            data = ArrayInteger.of(values.get());
-            if (values.isUnsigned())
-                data_type = VImageDataType.pvUInt;
-            else
-                data_type = VImageDataType.pvInt;
+            pixels = values.get();
+            unsigned = values.isUnsigned();
+            data_type = unsigned ? VImageDataType.pvUInt : VImageDataType.pvInt;
         }
         else if (value instanceof PVALongArray)
         {
             final PVALongArray values = (PVALongArray) value;
-            data = ArrayLong.of(values.get());
-            if (values.isUnsigned())
-                data_type = VImageDataType.pvULong;
-            else
-                data_type = VImageDataType.pvLong;
+            pixels = values.get();
+            unsigned = values.isUnsigned();
+            data_type = unsigned ? VImageDataType.pvULong : VImageDataType.pvLong;
         }
         else if (value instanceof PVAFloatArray)
         {
-            final PVAFloatArray values = (PVAFloatArray) value;
-            data = ArrayFloat.of(values.get());
+            pixels = ((PVAFloatArray) value).get();
+            unsigned = false;
             data_type = VImageDataType.pvFloat;
         }
         else if (value instanceof PVADoubleArray)
         {
-            final PVADoubleArray values = (PVADoubleArray) value;
-            data = ArrayDouble.of(values.get());
+            pixels = ((PVADoubleArray) value).get();
+            unsigned = false;
             data_type = VImageDataType.pvDouble;
         }
         else
             throw new Exception("Cannot decode NTNDArray type of value " + value);
 
+        if (processing == null)
+        {
+            if (copy  &&  codec_name == null)
+                return create(ArrayPool.copyOf(pixels), data_type, image_type, width, height, struct);
+            return create(pixels, data_type, image_type, width, height, struct);
+        }
+        final ImageProcessing.Result result = processing.apply(pixels, unsigned, image_type, width, height);
+        return create(result.pixels, data_type, image_type, result.width, result.height, struct);
+    }
+
+    /** @param pixels Primitive array of pixels
+     *  @param data_type Data type
+     *  @param image_type Image type
+     *  @param width Image width
+     *  @param height Image height
+     *  @param struct NTNDArray with alarm and time stamp
+     *  @return {@link VImage}
+     */
+    private static VImage create(final Object pixels, final VImageDataType data_type, final VImageType image_type,
+                                 final int width, final int height, final PVAStructure struct)
+    {
+        // Array*.of() wraps the pixels, no copy
+        final ListNumber data;
+        if (pixels instanceof byte[])
+            data = ArrayByte.of((byte[]) pixels);
+        else if (pixels instanceof short[])
+            data = ArrayShort.of((short[]) pixels);
+        else if (pixels instanceof int[])
+            data = ArrayInteger.of((int[]) pixels);
+        else if (pixels instanceof long[])
+            data = ArrayLong.of((long[]) pixels);
+        else if (pixels instanceof float[])
+            data = ArrayFloat.of((float[]) pixels);
+        else
+            data = ArrayDouble.of((double[]) pixels);
+
         final Alarm alarm = Decoders.decodeAlarm(struct);
         final Time time = Decoders.decodeTime(struct);
         return VImage.of(height, width, data, data_type, image_type, alarm, time);
@@ -0,0 +1,533 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.lang.reflect.Array;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.epics.vtype.VImageType;
+
+/** Region of interest, binning and stride for images
+ *
+ *  <p>Applied to the received pixels before the {@link org.epics.vtype.VImage} is created.
+ *  The region of interest is cropped from the image,
+ *  then each NxN block of pixels is replaced by its average,
+ *  then only every Nth of the binned pixels is kept in each direction.
+ *
+ *  <p>The result is a new pixel array of the same data type and color mode
+ *  that only holds the reduced image, obtained from the {@link ArrayPool}.
+ *  Unlike the received pixels of an unprocessed image,
+ *  it remains valid beyond the next update of the channel.
+ *
+ *  <p>Large images are processed in parallel by bands of rows.
+ *  The number of source pixels above which that happens can be set via
+ *  <code>org.phoebus.pv.npva.image_parallel_pixels</code>,
+ *  0 to always process images in the calling thread.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+class ImageProcessing
+{
+    /** Number of source pixels above which images are processed in parallel */
+    static final int PARALLEL_PIXELS = Integer.getInteger("org.phoebus.pv.npva.image_parallel_pixels", 1024*1024);
+
+    private final boolean has_roi;
+    private final int roi_x, roi_y, roi_width, roi_height;
+    private final int binning;
+    private final int stride;
+
+    /** Source and destination pixels */
+    private static abstract class Pixels
+    {
+        /** @param index Source index
+         *  @return Pixel value
+         */
+        abstract double get(int index);
+
+        /** @param index Destination index
+         *  @param value Pixel value
+         */
+        abstract void set(int index, double value);
+
+        /** @param from Source index
+         *  @param to Destination index
+         */
+        abstract void copy(int from, int to);
+
+        /** @param from Source index
+         *  @param to Destination index
+         *  @param length Number of pixels to copy
+         */
+        abstract void copy(int from, int to, int length);
+
+        /** @return Primitive array of destination pixels */
+        abstract Object getDestination();
+    }
+
+    private static class BytePixels extends Pixels
+    {
+        final byte[] src, dst;
+        final boolean unsigned;
+
+        BytePixels(final byte[] src, final int size, final boolean unsigned)
+        {
+            this.src = src;
+            this.dst = ArrayPool.get(byte[].class, size);
+            this.unsigned = unsigned;
+        }
+
+        @Override
+        double get(final int index)
+        {
+            return unsigned ? src[index] & 0xFF : src[index];
+        }
+
+        @Override
+        void set(final int index, final double value)
+        {
+            dst[index] = (byte) Math.round(value);
+        }
+
+        @Override
+        void copy(final int from, final int to)
+        {
+            dst[to] = src[from];
+        }
+
+        @Override
+        void copy(final int from, final int to, final int length)
+        {
+            System.arraycopy(src, from, dst, to, length);
+        }
+
+        @Override
+        Object getDestination()
+        {
+            return dst;
+        }
+    }
+
+    private static class ShortPixels extends Pixels
+    {
+        final short[] src, dst;
+        final boolean unsigned;
+
+        ShortPixels(final short[] src, final int size, final boolean unsigned)
+        {
+            this.src = src;
+            this.dst = ArrayPool.get(short[].class, size);
+            this.unsigned = unsigned;
+        }
+
+        @Override
+        double get(final int index)
+        {
+            return unsigned ? src[index] & 0xFFFF : src[index];
+        }
+
+        @Override
+        void set(final int index, final double value)
+        {
+            dst[index] = (short) Math.round(value);
+        }
+
+        @Override
+        void copy(final int from, final int to)
+        {
+            dst[to] = src[from];
+        }
+
+        @Override
+        void copy(final int from, final int to, final int length)
+        {
+            System.arraycopy(src, from, dst, to, length);
+        }
+
+        @Override
+        Object getDestination()
+        {
+            return dst;
+        }
+    }
+
+    private static class IntPixels extends Pixels
+    {
+        final int[] src, dst;
+        final boolean unsigned;
+
+        IntPixels(final int[] src, final int size, final boolean unsigned)
+        {
+            this.src = src;
+            this.dst = ArrayPool.get(int[].class, size);
+            this.unsigned = unsigned;
+        }
+
+        @Override
+        double get(final int index)
+        {
+            return unsigned ? src[index] & 0xFFFFFFFFL : src[index];
+        }
+
+        @Override
+        void set(final int index, final double value)
+        {
+            dst[index] = (int) Math.round(value);
+        }
+
+        @Override
+        void copy(final int from, final int to)
+        {
+            dst[to] = src[from];
+        }
+
+        @Override
+        void copy(final int from, final int to, final int length)
+        {
+            System.arraycopy(src, from, dst, to, length);
+        }
+
+        @Override
+        Object getDestination()
+        {
+            return dst;
+        }
+    }
+
+    private static class LongPixels extends Pixels
+    {
+        final long[] src, dst;
+        final boolean unsigned;
+
+        LongPixels(final long[] src, final int size, final boolean unsigned)
+        {
+            this.src = src;
+            this.dst = ArrayPool.get(long[].class, size);
+            this.unsigned = unsigned;
+        }
+
+        @Override
+        double get(final int index)
+        {
+            final long value = src[index];
+            if (unsigned  &&  value < 0)
+                return (value >>> 1) * 2.0 + (value & 1);
+            return value;
+        }
+
+        @Override
+        void set(final int index, final double value)
+        {
+            // Binned 64 bit pixels are limited to the precision of double
+            if (unsigned  &&  value >= 0x1p63)
+                dst[index] = (long) (value - 0x1p63) | Long.MIN_VALUE;
+            else
+                dst[index] = Math.round(value);
+        }
+
+        @Override
+        void copy(final int from, final int to)
+        {
+            dst[to] = src[from];
+        }
+
+        @Override
+        void copy(final int from, final int to, final int length)
+        {
+            System.arraycopy(src, from, dst, to, length);
+        }
+
+        @Override
+        Object getDestination()
+        {
+            return dst;
+        }
+    }
+
+    private static class FloatPixels extends Pixels
+    {
+        final float[] src, dst;
+
+        FloatPixels(final float[] src, final int size)
+        {
+            this.src = src;
+            this.dst = ArrayPool.get(float[].class, size);
+        }
+
+        @Override
+        double get(final int index)
+        {
+            return src[index];
+        }
+
+        @Override
+        void set(final int index, final double value)
+        {
+            dst[index] = (float) value;
+        }
+
+        @Override
+        void copy(final int from, final int to)
+        {
+            dst[to] = src[from];
+        }
+
+        @Override
+        void copy(final int from, final int to, final int length)
+        {
+            System.arraycopy(src, from, dst, to, length);
+        }
+
+        @Override
+        Object getDestination()
+        {
+            return dst;
+        }
+    }
+
+    private static class DoublePixels extends Pixels
+    {
+        final double[] src, dst;
+
+        DoublePixels(final double[] src, final int size)
+        {
+            this.src = src;
+            this.dst = ArrayPool.get(double[].class, size);
+        }
+
+        @Override
+        double get(final int index)
+        {
+            return src[index];
+        }
+
+        @Override
+        void set(final int index, final double value)
+        {
+            dst[index] = value;
+        }
+
+        @Override
+        void copy(final int from, final int to)
+        {
+            dst[to] = src[from];
+        }
+
+        @Override
+        void copy(final int from, final int to, final int length)
+        {
+            System.arraycopy(src, from, dst, to, length);
+        }
+
+        @Override
+        Object getDestination()
+        {
+            return dst;
+        }
+    }
+
+    /** Result of processing an image */
+    static class Result
+    {
+        /** Primitive array of pixels */
+        final Object pixels;
+        final int width, height;
+
+        Result(final Object pixels, final int width, final int height)
+        {
+            this.pixels = pixels;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    /** @param name_helper PV name with options
+     *  @return {@link ImageProcessing} or <code>null</code> if images are used as received
+     */
+    static ImageProcessing forName(final PVNameHelper name_helper)
+    {
+        if (! name_helper.hasROI()  &&  name_helper.getBinning() <= 1  &&  name_helper.getStride() <= 1)
+            return null;
+        return new ImageProcessing(name_helper.hasROI(),
+                                   name_helper.getROIX(), name_helper.getROIY(),
+                                   name_helper.getROIWidth(), name_helper.getROIHeight(),
+                                   name_helper.getBinning(), name_helper.getStride());
+    }
+
+    /** @param has_roi Crop to region of interest?
+     *  @param roi_x Left edge of region
+     *  @param roi_y Top edge of region
+     *  @param roi_width Width of region
+     *  @param roi_height Height of region
+     *  @param binning Average NxN pixels, 1 for none
+     *  @param stride Keep every Nth pixel, 1 for all
+     */
+    ImageProcessing(final boolean has_roi, final int roi_x, final int roi_y, final int roi_width, final int roi_height,
+                    final int binning, final int stride)
+    {
+        this.has_roi = has_roi;
+        this.roi_x = roi_x;
+        this.roi_y = roi_y;
+        this.roi_width = roi_width;
+        this.roi_height = roi_height;
+        this.binning = binning;
+        this.stride = stride;
+    }
+
+    /** @param pixels Primitive array of received pixels
+     *  @param unsigned Are integer pixels unsigned?
+     *  @param type Image type
+     *  @param width Image width
+     *  @param height Image height
+     *  @return {@link Result} with new array of pixels
+     *  @throws Exception on error
+     */
+    Result apply(final Object pixels, final boolean unsigned, final VImageType type,
+                 final int width, final int height) throws Exception
+    {
+        // Layout: Pixel x, y of color channel c is at c*c_step + x*x_step + y*y_step
+        final int channels, c_step, x_step;
+        switch (type)
+        {
+        case TYPE_MONO:
+            channels = 1;
+            c_step = 0;
+            x_step = 1;
+            break;
+        case TYPE_RGB1:
+            channels = 3;
+            c_step = 1;
+            x_step = 3;
+            break;
+        case TYPE_RGB2:
+            channels = 3;
+            c_step = width;
+            x_step = 1;
+            break;
+        case TYPE_RGB3:
+            channels = 3;
+            c_step = width * height;
+            x_step = 1;
+            break;
+        default:
+            throw new Exception("Cannot apply ROI, binning or stride to " + type + " image");
+        }
+        final int y_step = type == VImageType.TYPE_RGB3 ? width : channels * width;
+
+        // Region of interest, clipped to the image
+        final int x0 = has_roi ? Math.min(width, roi_x) : 0;
+        final int y0 = has_roi ? Math.min(height, roi_y) : 0;
+        final int x1 = has_roi ? Math.min(width, roi_x + roi_width) : width;
+        final int y1 = has_roi ? Math.min(height, roi_y + roi_height) : height;
+        // Binned pixels, then every 'stride' of them
+        final int step = binning * stride;
+        final int out_width = x1 - x0 >= binning ? (x1 - x0 - binning) / step + 1 : 0;
+        final int out_height = y1 - y0 >= binning ? (y1 - y0 - binning) / step + 1 : 0;
+        final int size = channels * out_width * out_height;
+
+        final int length = Array.getLength(pixels);
+        if (length < channels * width * height)
+            throw new Exception("Expected " + channels + "x" + width + "x" + height + " pixels, got " + length);
+        final Pixels data = createPixels(pixels, size, unsigned);
+
+        // Output has the same layout as the input
+        final int out_c_step = type == VImageType.TYPE_RGB2 ? out_width : type == VImageType.TYPE_RGB3 ? out_width * out_height : c_step;
+        final int out_y_step = type == VImageType.TYPE_RGB3 ? out_width : channels * out_width;
+
+        final Band band = (first, last) ->
+        {
+            for (int oy=first; oy<last; ++oy)
+            {
+                final int y = y0 + oy * step;
+                for (int c=0; c<channels; ++c)
+                {
+                    final int src_row = c * c_step + y * y_step;
+                    final int dst_row = c * out_c_step + oy * out_y_step;
+                    if (binning == 1)
+                    {
+                        if (stride == 1  &&  x_step == 1)
+                            data.copy(src_row + x0, dst_row, out_width);
+                        else if (stride == 1  &&  c_step == 1)
+                        {   // Interleaved color channels: Copy the whole row once
+                            if (c == 0)
+                                data.copy(src_row + x0 * x_step, dst_row, out_width * channels);
+                        }
+                        else
+                            for (int ox=0; ox<out_width; ++ox)
+                                data.copy(src_row + (x0 + ox * step) * x_step, dst_row + ox * x_step);
+                        continue;
+                    }
+                    final double count = binning * binning;
+                    for (int ox=0; ox<out_width; ++ox)
+                    {
+                        final int src = src_row + (x0 + ox * step) * x_step;
+                        double sum = 0.0;
+                        for (int by=0; by<binning; ++by)
+                        {
+                            final int src_bin_row = src + by * y_step;
+                            for (int bx=0; bx<binning; ++bx)
+                                sum += data.get(src_bin_row + bx * x_step);
+                        }
+                        data.set(dst_row + ox * x_step, sum / count);
+                    }
+                }
+            }
+        };
+
+        final long work = (long) size * binning * binning;
+        final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (PARALLEL_PIXELS <= 0  ||  work <= PARALLEL_PIXELS  ||  parallelism <= 1  ||  out_height < 2)
+            band.process(0, out_height);
+        else
+        {
+            final int bands = Math.min(out_height, 2 * parallelism);
+            IntStream.range(0, bands)
+                     .parallel()
+                     .forEach(b -> band.process(b * out_height / bands, (b+1) * out_height / bands));
+        }
+        return new Result(data.getDestination(), out_width, out_height);
+    }
+
+    /** Processes a band of output rows */
+    @FunctionalInterface
+    private interface Band
+    {
+        /** @param first First output row
+         *  @param last Last output row, exclusive
+         */
+        void process(int first, int last);
+    }
+
+    private static Pixels createPixels(final Object pixels, final int size, final boolean unsigned) throws Exception
+    {
+        if (pixels instanceof byte[])
+            return new BytePixels((byte[]) pixels, size, unsigned);
+        if (pixels instanceof short[])
+            return new ShortPixels((short[]) pixels, size, unsigned);
+        if (pixels instanceof int[])
+            return new IntPixels((int[]) pixels, size, unsigned);
+        if (pixels instanceof long[])
+            return new LongPixels((long[]) pixels, size, unsigned);
+        if (pixels instanceof float[])
+            return new FloatPixels((float[]) pixels, size);
+        if (pixels instanceof double[])
+            return new DoublePixels((double[]) pixels, size);
+        throw new Exception("Cannot process pixels of type " + pixels.getClass().getName());
+    }
+
+    /** @return Debug representation */
+    @Override
+    public String toString()
+    {
+        return "ImageProcessing" +
+               (has_roi ? " roi " + roi_x + ":" + roi_y + ":" + roi_width + ":" + roi_height : "") +
+               (binning > 1 ? " bin " + binning : "") +
+               (stride > 1 ? " stride " + stride : "");
+    }
+}
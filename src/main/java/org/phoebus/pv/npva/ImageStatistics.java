@@ -0,0 +1,344 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import org.epics.util.array.CollectionNumbers;
+import org.epics.vtype.VImage;
+import org.epics.vtype.VImageDataType;
+
+/** Statistics of an image: Minimum, maximum, mean and histogram
+ *
+ *  <p>When the PV name requests <code>stats=N</code>,
+ *  the statistics are computed right after decoding each image
+ *  while the pixels are still in the cache,
+ *  in one pass over the pixels,
+ *  so viewers can adjust the contrast without scanning the image again.
+ *
+ *  <p>The histogram covers the full range of the pixel data type,
+ *  for example 0 to 65535 for unsigned 16 bit pixels.
+ *  For 8 and 16 bit pixels it is computed together with min, max and mean.
+ *  For wider pixels, only min, max and mean are provided.
+ *
+ *  <p>The statistics are delivered together with the image
+ *  and can be obtained via {@link PVA_PV#getImageStatistics(VImage)}
+ *  for the image that the PV sent to its listeners.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class ImageStatistics
+{
+    /** Image for which the statistics were computed */
+    private final VImage image;
+
+    private final long count;
+    private final double min, max, sum;
+    private final int[] histogram;
+    private final double histogram_start, bin_width;
+
+    private ImageStatistics(final VImage image, final long count, final double min, final double max, final double sum,
+                            final int[] histogram, final double histogram_start, final double bin_width)
+    {
+        this.image = image;
+        this.count = count;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+        this.histogram = histogram;
+        this.histogram_start = histogram_start;
+        this.bin_width = bin_width;
+    }
+
+    /** @param image Image
+     *  @return <code>true</code> if these are the statistics of that image instance
+     */
+    boolean isFor(final VImage image)
+    {
+        return this.image == image;
+    }
+
+    /** @return Number of pixels */
+    public long getCount()
+    {
+        return count;
+    }
+
+    /** @return Minimum pixel value, NaN for empty image */
+    public double getMin()
+    {
+        return min;
+    }
+
+    /** @return Maximum pixel value, NaN for empty image */
+    public double getMax()
+    {
+        return max;
+    }
+
+    /** @return Mean pixel value, NaN for empty image */
+    public double getMean()
+    {
+        return count > 0 ? sum / count : Double.NaN;
+    }
+
+    /** @return Histogram counts, <code>null</code> if not available for the data type */
+    public int[] getHistogram()
+    {
+        return histogram;
+    }
+
+    /** @return Pixel value at the start of the first histogram bin */
+    public double getHistogramStart()
+    {
+        return histogram_start;
+    }
+
+    /** @return Range of pixel values in each histogram bin */
+    public double getBinWidth()
+    {
+        return bin_width;
+    }
+
+    /** Partial result of one band of pixels */
+    private static class Band
+    {
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE, sum = 0;
+        double dmin = Double.POSITIVE_INFINITY, dmax = Double.NEGATIVE_INFINITY, dsum = 0.0;
+        int[] histogram;
+    }
+
+    /** @param image Image
+     *  @param bins Number of histogram bins, power of 2
+     *  @return {@link ImageStatistics}
+     *  @throws Exception on error
+     */
+    public static ImageStatistics compute(final VImage image, final int bins) throws Exception
+    {
+        final Object pixels = CollectionNumbers.wrappedArray(image.getData());
+        if (pixels == null)
+            throw new Exception("Cannot compute statistics for " + image.getData().getClass().getName());
+        final VImageDataType type = image.getDataType();
+        final boolean unsigned = type == VImageDataType.pvUByte  ||  type == VImageDataType.pvUShort  ||
+                                 type == VImageDataType.pvUInt   ||  type == VImageDataType.pvULong;
+        final int length;
+        final int bits;
+        final boolean floating;
+        if (pixels instanceof byte[])
+        {
+            length = ((byte[]) pixels).length;
+            bits = 8;
+            floating = false;
+        }
+        else if (pixels instanceof short[])
+        {
+            length = ((short[]) pixels).length;
+            bits = 16;
+            floating = false;
+        }
+        else if (pixels instanceof int[])
+        {
+            length = ((int[]) pixels).length;
+            bits = 32;
+            floating = false;
+        }
+        else if (pixels instanceof long[])
+        {
+            length = ((long[]) pixels).length;
+            bits = 64;
+            floating = false;
+        }
+        else if (pixels instanceof float[])
+        {
+            length = ((float[]) pixels).length;
+            bits = 32;
+            floating = true;
+        }
+        else if (pixels instanceof double[])
+        {
+            length = ((double[]) pixels).length;
+            bits = 64;
+            floating = true;
+        }
+        else
+            throw new Exception("Cannot compute statistics for pixels of type " + pixels.getClass().getName());
+
+        // Histogram for 8 and 16 bit pixels, shifting values into bins
+        final boolean has_histogram = bits <= 16;
+        final int histogram_bins = has_histogram ? Math.min(bins, 1 << bits) : 0;
+        final int shift = has_histogram ? bits - Integer.numberOfTrailingZeros(histogram_bins) : 0;
+        // Signed values are offset to start at 0
+        final int offset = has_histogram  &&  ! unsigned ? 1 << (bits - 1) : 0;
+
+        final int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        final int band_count = (ImageProcessing.PARALLEL_PIXELS <= 0  ||  length <= ImageProcessing.PARALLEL_PIXELS  ||  parallelism <= 1)
+                             ? 1 : 2 * parallelism;
+        final Band[] bands = new Band[band_count];
+        final IntStream indices = IntStream.range(0, band_count);
+        (band_count > 1 ? indices.parallel() : indices).forEach(b ->
+        {
+            final Band band = new Band();
+            if (has_histogram)
+                band.histogram = new int[histogram_bins];
+            scan(pixels, unsigned, b * (long) length / band_count, (b+1) * (long) length / band_count, offset, shift, band);
+            bands[b] = band;
+        });
+
+        // Merge bands
+        final Band total = bands[0];
+        for (int b=1; b<band_count; ++b)
+        {
+            final Band band = bands[b];
+            total.min = Math.min(total.min, band.min);
+            total.max = Math.max(total.max, band.max);
+            total.sum += band.sum;
+            total.dmin = Math.min(total.dmin, band.dmin);
+            total.dmax = Math.max(total.dmax, band.dmax);
+            total.dsum += band.dsum;
+            if (has_histogram)
+                for (int i=0; i<histogram_bins; ++i)
+                    total.histogram[i] += band.histogram[i];
+        }
+
+        final double bin_width = has_histogram ? 1 << shift : 0.0;
+        if (length <= 0)
+            return new ImageStatistics(image, 0, Double.NaN, Double.NaN, 0.0, total.histogram, -offset, bin_width);
+        if (floating)
+            return new ImageStatistics(image, length, total.dmin, total.dmax, total.dsum, null, 0.0, 0.0);
+        if (bits == 64)
+        {   // Unsigned 64 bit values were compared with flipped sign bit
+            final long flip = unsigned ? Long.MIN_VALUE : 0;
+            return new ImageStatistics(image, length, toDouble(total.min ^ flip, unsigned), toDouble(total.max ^ flip, unsigned),
+                                       total.dsum, null, 0.0, 0.0);
+        }
+        return new ImageStatistics(image, length, total.min, total.max, total.sum, total.histogram, -offset, bin_width);
+    }
+
+    /** @param value Value
+     *  @param unsigned Is value unsigned?
+     *  @return Value as double
+     */
+    private static double toDouble(final long value, final boolean unsigned)
+    {
+        return unsigned  &&  value < 0 ? value + 0x1p64 : value;
+    }
+
+    /** Scan pixels, one loop per data type
+     *  @param pixels Primitive array of pixels
+     *  @param unsigned Are integer pixels unsigned?
+     *  @param first First pixel
+     *  @param last Last pixel, exclusive
+     *  @param offset Offset to make signed values positive for histogram
+     *  @param shift Shift from value to histogram bin
+     *  @param band Result
+     */
+    private static void scan(final Object pixels, final boolean unsigned, final long first, final long last,
+                             final int offset, final int shift, final Band band)
+    {
+        final int start = (int) first, end = (int) last;
+        long min = band.min, max = band.max, sum = 0;
+        final int[] histogram = band.histogram;
+        if (pixels instanceof byte[])
+        {
+            final byte[] data = (byte[]) pixels;
+            final int mask = unsigned ? 0xFF : 0xFFFFFFFF;
+            for (int i=start; i<end; ++i)
+            {
+                final int value = data[i] & mask;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                ++histogram[(value + offset) >>> shift];
+            }
+        }
+        else if (pixels instanceof short[])
+        {
+            final short[] data = (short[]) pixels;
+            final int mask = unsigned ? 0xFFFF : 0xFFFFFFFF;
+            for (int i=start; i<end; ++i)
+            {
+                final int value = data[i] & mask;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+                ++histogram[(value + offset) >>> shift];
+            }
+        }
+        else if (pixels instanceof int[])
+        {
+            final int[] data = (int[]) pixels;
+            final long mask = unsigned ? 0xFFFFFFFFL : 0xFFFFFFFFFFFFFFFFL;
+            for (int i=start; i<end; ++i)
+            {
+                final long value = data[i] & mask;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                sum += value;
+            }
+        }
+        else if (pixels instanceof long[])
+        {
+            // Sum of 64 bit values can overflow long, so sum as double.
+            // For unsigned pixels, compare with offset so that signed comparison works
+            final long[] data = (long[]) pixels;
+            final long flip = unsigned ? Long.MIN_VALUE : 0;
+            double dsum = 0.0;
+            for (int i=start; i<end; ++i)
+            {
+                final long value = data[i] ^ flip;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+                dsum += toDouble(data[i], unsigned);
+            }
+            band.dsum = dsum;
+        }
+        else if (pixels instanceof float[])
+        {
+            final float[] data = (float[]) pixels;
+            double dmin = band.dmin, dmax = band.dmax, dsum = 0.0;
+            for (int i=start; i<end; ++i)
+            {
+                final double value = data[i];
+                dmin = Math.min(dmin, value);
+                dmax = Math.max(dmax, value);
+                dsum += value;
+            }
+            band.dmin = dmin;
+            band.dmax = dmax;
+            band.dsum = dsum;
+        }
+        else
+        {
+            final double[] data = (double[]) pixels;
+            double dmin = band.dmin, dmax = band.dmax, dsum = 0.0;
+            for (int i=start; i<end; ++i)
+            {
+                final double value = data[i];
+                dmin = Math.min(dmin, value);
+                dmax = Math.max(dmax, value);
+                dsum += value;
+            }
+            band.dmin = dmin;
+            band.dmax = dmax;
+            band.dsum = dsum;
+        }
+        band.min = min;
+        band.max = max;
+        band.sum = sum;
+    }
+
+    /** @return Debug representation */
+    @Override
+    public String toString()
+    {
+        return String.format("%d pixels, min %g, max %g, mean %g, %s", count, min, max, getMean(),
+                             histogram == null ? "no histogram" : histogram.length + " bins");
+    }
+}
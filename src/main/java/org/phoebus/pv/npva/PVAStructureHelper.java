@@ -8,165 +8,158 @@
 package org.phoebus.pv.npva;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import org.epics.pva.data.PVAArray;
 import org.epics.pva.data.PVAByteArray;
 import org.epics.pva.data.PVAData;
 import org.epics.pva.data.PVADoubleArray;
 import org.epics.pva.data.PVAFloatArray;
 import org.epics.pva.data.PVAIntArray;
 import org.epics.pva.data.PVALongArray;
-import org.epics.pva.data.PVANumber;
 import org.epics.pva.data.PVAShortArray;
-import org.epics.pva.data.PVAString;
 import org.epics.pva.data.PVAStringArray;
 import org.epics.pva.data.PVAStructure;
+import org.epics.util.array.ArrayByte;
 import org.epics.util.array.ArrayDouble;
 import org.epics.util.array.ArrayFloat;
 import org.epics.util.array.ArrayInteger;
+import org.epics.util.array.ArrayLong;
+import org.epics.util.array.ArrayShort;
+import org.epics.util.array.ArrayUByte;
 import org.epics.util.array.ArrayUInteger;
-import org.epics.vtype.Alarm;
-import org.epics.vtype.AlarmSeverity;
-import org.epics.vtype.AlarmStatus;
-import org.epics.vtype.Time;
-import org.epics.vtype.VString;
+import org.epics.util.array.ArrayULong;
+import org.epics.util.array.ArrayUShort;
 import org.epics.vtype.VTable;
 import org.epics.vtype.VType;
 
 @SuppressWarnings("nls")
 public class PVAStructureHelper
 {
-    public static VType getVType(final PVAStructure struct, final PVNameHelper name_helper) throws Exception
-    {
-        PVAStructure actual = struct;
-        if (! name_helper.getField().equals("value"))
-        {   // Fetch data from a sub-field
-            final PVAData field = struct.get(name_helper.getField());
-            if (field instanceof PVAStructure)
-                actual = (PVAStructure) field;
-            else if (field instanceof PVANumber)
-                return Decoders.decodeNumber(struct, (PVANumber) field);
-            if (field instanceof PVAString)
-                return Decoders.decodeString(struct, (PVAString) field);
-        }
-
-        // Handle normative types
-        String type = actual.getStructureName();
-        if (type.startsWith("epics:nt/"))
-            type = type.substring(9);
-        if (type.equals("NTScalar:1.0"))
-            return decodeScalar(actual);
-        if (type.equals("NTEnum:1.0"))
-            return Decoders.decodeEnum(actual);
-        if (type.equals("NTScalarArray:1.0"))
-            return decodeNTArray(actual);
-        if (type.equals("NTNDArray:1.0"))
-            return ImageDecoder.decode(actual);
-        if (type.equals("NTTable:1.0"))
-            return decodeNTTable(actual);
-
-        // Handle data that contains a "value", even though not marked as NT*
-        final PVAData field = actual.get("value");
-        if (field instanceof PVANumber  ||
-            field instanceof PVAString)
-            return decodeScalar(actual);
-        else if (field instanceof PVAArray)
-            return decodeNTArray(actual);
-        // TODO: not really sure how to handle arbitrary structures -- no solid use cases yet...
+    private static final Logger logger = Logger.getLogger(PVAStructureHelper.class.getPackageName());
 
-        // Create string that indicates name of unknown type
-        return VString.of(actual.format(),
-                          Alarm.of(AlarmSeverity.UNDEFINED, AlarmStatus.CLIENT, "Unknown type"),
-                          Time.now());
-    }
-
-    /** Attempt to decode a scalar {@link VType}
-     *  @param struct PVA data for a scalar
-     *  @return Value
-     *  @throws Exception on error decoding the scalar
+    /** Decode structure
+     *
+     *  <p>Compiles a {@link DecodePlan} for the structure.
+     *  For repeated updates of the same structure,
+     *  compile the plan once and re-use it.
+     *
+     *  @param struct Received structure
+     *  @param name_helper Name helper that identifies the field to decode
+     *  @return Decoded value
+     *  @throws Exception on error
      */
-    private static VType decodeScalar(final PVAStructure struct) throws Exception
+    public static VType getVType(final PVAStructure struct, final PVNameHelper name_helper) throws Exception
     {
-        final PVAData field = struct.get("value");
-        if (field instanceof PVANumber)
-            return Decoders.decodeNumber(struct, (PVANumber) field);
-        if (field instanceof PVAString)
-            return Decoders.decodeString(struct, (PVAString) field);
-        throw new Exception("Expected struct with scalar 'value', got " + struct);
+        return DecodePlan.compile(struct, name_helper).decode();
     }
 
     /** Decode table from NTTable
-     *  @param struct
-     *  @return
-     *  @throws Exception
+     *
+     *  <p>Supports columns of all numeric PVA array types and strings.
+     *  Received arrays are wrapped unless they are to be copied,
+     *  see {@link DecodePlan} for how long wrapped arrays remain valid.
+     *  Columns of other types are skipped together with their label,
+     *  so names and values stay aligned.
+     *  When the number of labels does not match the number of columns,
+     *  the column field names are used for all columns.
+     *
+     *  @param struct NTTable
+     *  @param copy Copy received arrays?
+     *  @return {@link VTable}
+     *  @throws Exception on error
      */
-    private static VType decodeNTTable(final PVAStructure struct) throws Exception
+    static VType decodeNTTable(final PVAStructure struct, final boolean copy) throws Exception
     {
         final PVAStringArray labels_array = struct.get("labels");
-        final List<String> names  = new ArrayList<>(List.of(labels_array.get()));
+        final String[] labels = labels_array == null ? new String[0] : received(labels_array.get(), copy);
+        final List<PVAData> columns = struct.<PVAStructure>get("value").get();
 
-        final List<Class<?>> types = new ArrayList<>(names.size());
-        final List<Object> values = new ArrayList<>(names.size());
-        final PVAStructure value_struct = struct.get("value");
-        for (PVAData column : value_struct.get())
+        final List<Class<?>> types = new ArrayList<>(columns.size());
+        final List<Object> values = new ArrayList<>(columns.size());
+        BitSet skipped = null;
+        for (int i=0; i<columns.size(); ++i)
         {
+            final PVAData column = columns.get(i);
+            final Class<?> type;
+            final Object value;
             if (column instanceof PVADoubleArray)
             {
-                final PVADoubleArray typed = (PVADoubleArray)column;
-                types.add(Double.TYPE);
-                values.add(ArrayDouble.of(typed.get()));
+                type = Double.TYPE;
+                value = ArrayDouble.of(received(((PVADoubleArray) column).get(), copy));
             }
             else if (column instanceof PVAFloatArray)
             {
-                final PVAFloatArray typed = (PVAFloatArray)column;
-                types.add(Float.TYPE);
-                values.add(ArrayFloat.of(typed.get()));
+                type = Float.TYPE;
+                value = ArrayFloat.of(received(((PVAFloatArray) column).get(), copy));
+            }
+            else if (column instanceof PVALongArray)
+            {
+                final PVALongArray typed = (PVALongArray) column;
+                type = Long.TYPE;
+                value = typed.isUnsigned() ? ArrayULong.of(received(typed.get(), copy)) : ArrayLong.of(received(typed.get(), copy));
             }
             else if (column instanceof PVAIntArray)
             {
-                final PVAIntArray typed = (PVAIntArray)column;
-                types.add(Integer.TYPE);
-                if (typed.isUnsigned())
-                    values.add(ArrayUInteger.of(typed.get()));
-                else
-                    values.add(ArrayInteger.of(typed.get()));
+                final PVAIntArray typed = (PVAIntArray) column;
+                type = Integer.TYPE;
+                value = typed.isUnsigned() ? ArrayUInteger.of(received(typed.get(), copy)) : ArrayInteger.of(received(typed.get(), copy));
+            }
+            else if (column instanceof PVAShortArray)
+            {
+                final PVAShortArray typed = (PVAShortArray) column;
+                type = Short.TYPE;
+                value = typed.isUnsigned() ? ArrayUShort.of(received(typed.get(), copy)) : ArrayShort.of(received(typed.get(), copy));
+            }
+            else if (column instanceof PVAByteArray)
+            {
+                final PVAByteArray typed = (PVAByteArray) column;
+                type = Byte.TYPE;
+                value = typed.isUnsigned() ? ArrayUByte.of(received(typed.get(), copy)) : ArrayByte.of(received(typed.get(), copy));
             }
             else if (column instanceof PVAStringArray)
             {
-                final PVAStringArray typed = (PVAStringArray)column;
-                types.add(String.class);
-                values.add(List.of(typed.get()));
+                type = String.class;
+                value = Collections.unmodifiableList(Arrays.asList(received(((PVAStringArray) column).get(), copy)));
             }
+            else
+            {
+                logger.log(Level.FINE, () -> "Skipping unsupported NTTable column " + column.getName());
+                if (skipped == null)
+                    skipped = new BitSet();
+                skipped.set(i);
+                continue;
+            }
+            types.add(type);
+            values.add(value);
+        }
+
+        // Use labels as names if there is one per column, otherwise the column field names
+        final boolean use_labels = labels.length == columns.size();
+        final List<String> names;
+        if (skipped == null  &&  use_labels)
+            names = Collections.unmodifiableList(Arrays.asList(labels));
+        else
+        {
+            names = new ArrayList<>(types.size());
+            for (int i=0; i<columns.size(); ++i)
+                if (skipped == null  ||  ! skipped.get(i))
+                    names.add(use_labels ? labels[i] : columns.get(i).getName());
         }
 
         return VTable.of(types, names, values);
     }
 
-    /** Decode 'value', 'timeStamp', 'alarm' of NTArray
-     *  @param struct
-     *  @return
-     *  @throws Exception
+    /** @param array Received array
+     *  @param copy Copy the array?
+     *  @return Received array or copy
      */
-    private static VType decodeNTArray(final PVAStructure struct) throws Exception
+    private static <T> T received(final T array, final boolean copy)
     {
-        final PVAData field = struct.get("value");
-        if (field instanceof PVADoubleArray)
-            return Decoders.decodeDoubleArray(struct, (PVADoubleArray) field);
-        if (field instanceof PVAFloatArray)
-            return Decoders.decodeFloatArray(struct, (PVAFloatArray) field);
-        if (field instanceof PVALongArray)
-            return Decoders.decodeLongArray(struct, (PVALongArray) field);
-        if (field instanceof PVAIntArray)
-            return Decoders.decodeIntArray(struct, (PVAIntArray) field);
-        if (field instanceof PVAShortArray)
-            return Decoders.decodeShortArray(struct, (PVAShortArray) field);
-        if (field instanceof PVAByteArray)
-            return Decoders.decodeByteArray(struct, (PVAByteArray) field);
-        if (field instanceof PVAStringArray)
-            return Decoders.decodeStringArray(struct, (PVAStringArray) field);
-        return VString.of(struct.format(),
-                          Alarm.of(AlarmSeverity.UNDEFINED, AlarmStatus.CLIENT, "Unknown array type"),
-                          Time.now());
+        return copy ? ArrayPool.copyOf(array) : array;
     }
 }
@@ -7,20 +7,110 @@
  ******************************************************************************/
 package org.phoebus.pv.npva;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
 import org.epics.pva.client.PVAClient;
 
-/** Singleton that maintains the {@link PVAClient}
+/** Singleton that maintains the {@link PVAClient}s
+ *
+ *  <p>The system property <code>org.phoebus.pv.npva.clients</code>
+ *  sets the number of clients in the {@link ClientPool}, default 1.
+ *  More clients spread search, TCP receive and decoding
+ *  of many channels across more threads.
+ *
+ *  <p>Also maintains the {@link SharedChannel}s,
+ *  one per channel name and read request,
+ *  reference counted by the {@link PVA_PV}s that use them.
+ *
+ *  <p>Received updates are decoded on the PVAClient thread into values
+ *  that are sent to the PVs on a {@link StripedExecutor}, configured by system properties:
+ *  <ul>
+ *  <li><code>org.phoebus.pv.npva.decode_threads</code>:
+ *      Number of threads, defaults to the number of CPU cores.
+ *      0 to send values on the PVAClient thread.
+ *  <li><code>org.phoebus.pv.npva.decode_queue_size</code>:
+ *      Maximum number of queued values per channel, default 8.
+ *  <li><code>org.phoebus.pv.npva.decode_overflow</code>:
+ *      <code>LATEST</code> (default), <code>DROP_OLDEST</code> or <code>DROP_NEWEST</code>
+ *      for values that overflow the queue.
+ *  </ul>
+ *
+ *  <p>{@link PVA_Metrics} are registered with JMX.
+ *
  *  @author Kay Kasemir
  */
+@SuppressWarnings("nls")
 public class PVA_Context
 {
     private static PVA_Context instance;
 
-    private final PVAClient client;
+    private final ClientPool clients;
+
+    /** Shared channels by channel name, read request and options. SYNC on access */
+    private final Map<String, SharedChannel> channels = new HashMap<>();
+
+    /** Executor for work that should not run on the PVAClient threads */
+    private final ExecutorService executor;
+
+    /** Executor for sending decoded values to PVs, <code>null</code> to send on PVAClient thread */
+    private final StripedExecutor decoder;
+
+    private final PVA_Metrics metrics = new PVA_Metrics(this);
 
     private PVA_Context() throws Exception
     {
-        client = new PVAClient();
+        clients = new ClientPool(Integer.getInteger("org.phoebus.pv.npva.clients", 1));
+        final AtomicInteger count = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(runnable ->
+        {
+            final Thread thread = new Thread(runnable, "PVA_PV " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final int threads = Integer.getInteger("org.phoebus.pv.npva.decode_threads", Runtime.getRuntime().availableProcessors());
+        if (threads > 0)
+            decoder = new StripedExecutor("PVA decode", threads,
+                                          Integer.getInteger("org.phoebus.pv.npva.decode_queue_size", 8),
+                                          getOverflow());
+        else
+            decoder = null;
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(PVA_Metrics.OBJECT_NAME));
+        }
+        catch (Exception ex)
+        {
+            Logger.getLogger(PVA_Context.class.getPackageName()).log(Level.WARNING, "Cannot register " + PVA_Metrics.OBJECT_NAME, ex);
+        }
+    }
+
+    /** @return Overflow policy from <code>org.phoebus.pv.npva.decode_overflow</code>, default LATEST */
+    private static StripedExecutor.Overflow getOverflow()
+    {
+        final String policy = System.getProperty("org.phoebus.pv.npva.decode_overflow", "LATEST");
+        try
+        {
+            return StripedExecutor.Overflow.valueOf(policy.trim().toUpperCase());
+        }
+        catch (IllegalArgumentException ex)
+        {
+            Logger.getLogger(PVA_Context.class.getPackageName())
+                  .log(Level.WARNING, "Unknown org.phoebus.pv.npva.decode_overflow '" + policy + "', using LATEST");
+            return StripedExecutor.Overflow.LATEST;
+        }
     }
 
     public static synchronized PVA_Context getInstance() throws Exception
@@ -30,8 +120,85 @@ public class PVA_Context
         return instance;
     }
 
-    PVAClient getClient()
+    /** @param channel_name Channel name
+     *  @return Client to use for that channel
+     */
+    PVAClient getClient(final String channel_name)
+    {
+        return clients.getClient(channel_name);
+    }
+
+    /** Get shared channel, create if necessary
+     *  @param name_helper Channel name and read request
+     *  @param pv PV that will use the channel
+     *  @return {@link SharedChannel}
+     */
+    SharedChannel getChannel(final PVNameHelper name_helper, final PVA_PV pv)
+    {
+        String key = name_helper.getChannel() + " " + name_helper.getReadRequest();
+        if (name_helper.getRate() > 0)
+            key += " rate=" + name_helper.getRate();
+        if (name_helper.getQueueSize() > 0)
+            key += " queueSize=" + name_helper.getQueueSize();
+        if (name_helper.isPipeline())
+            key += " pipeline";
+        if (name_helper.isLatest())
+            key += " latest";
+        if (name_helper.hasRange()  &&  ! name_helper.isServerRange())
+            key += " range=" + name_helper.getRangeStart() + ":" + name_helper.getRangeEnd();
+        if (name_helper.getDecimation() > 1)
+            key += " decimate=" + name_helper.getDecimation();
+        if (name_helper.hasROI())
+            key += " roi=" + name_helper.getROIX() + ":" + name_helper.getROIY() + ":" +
+                   name_helper.getROIWidth() + ":" + name_helper.getROIHeight();
+        if (name_helper.getBinning() > 1)
+            key += " bin=" + name_helper.getBinning();
+        if (name_helper.getStride() > 1)
+            key += " stride=" + name_helper.getStride();
+        if (name_helper.getStatisticsBins() > 0)
+            key += " stats=" + name_helper.getStatisticsBins();
+        final SharedChannel channel;
+        synchronized (channels)
+        {
+            channel = channels.computeIfAbsent(key, k -> new SharedChannel(clients.getClient(name_helper.getChannel()), k, name_helper, decoder, metrics.total));
+            channel.addPV(pv);
+        }
+        channel.sendLastValue(pv);
+        return channel;
+    }
+
+    /** Release shared channel, close when no longer used
+     *  @param channel Channel obtained via <code>getChannel</code>
+     *  @param pv PV that no longer uses the channel
+     */
+    void releaseChannel(final SharedChannel channel, final PVA_PV pv)
+    {
+        synchronized (channels)
+        {
+            if (channel.removePV(pv) > 0)
+                return;
+            channels.remove(channel.getKey());
+        }
+        channel.close();
+    }
+
+    /** @return Currently open shared channels */
+    List<SharedChannel> getChannels()
+    {
+        synchronized (channels)
+        {
+            return new ArrayList<>(channels.values());
+        }
+    }
+
+    /** @return Runtime metrics */
+    public PVA_Metrics getMetrics()
+    {
+        return metrics;
+    }
+
+    ExecutorService getExecutor()
     {
-        return client;
+        return executor;
     }
 }
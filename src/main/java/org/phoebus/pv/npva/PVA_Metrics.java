@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Runtime metrics of the PVA PVs
+ *
+ *  <p>Counters are kept per shared channel, i.e. for all PVs
+ *  that use the same channel and read request,
+ *  and as totals.
+ *  They are always enabled since updating them only
+ *  involves {@link java.util.concurrent.atomic.LongAdder}s.
+ *
+ *  <p>Available via {@link PVA_Context#getMetrics()}
+ *  and as JMX bean {@value #OBJECT_NAME}.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+public class PVA_Metrics implements PVA_MetricsMXBean
+{
+    /** JMX object name */
+    public static final String OBJECT_NAME = "org.phoebus.pv.npva:type=Metrics";
+
+    /** Snapshot of the metrics */
+    public static class Snapshot
+    {
+        private final String name;
+        private final long received, decoded, decode_nanos, dropped, merged, overruns, bytes,
+                           listener_nanos, connects, disconnects, connected_nanos;
+
+        Snapshot(final String name, final long received, final long decoded, final long decode_nanos,
+                 final long dropped, final long merged, final long overruns, final long bytes, final long listener_nanos,
+                 final long connects, final long disconnects, final long connected_nanos)
+        {
+            this.name = name;
+            this.received = received;
+            this.decoded = decoded;
+            this.decode_nanos = decode_nanos;
+            this.dropped = dropped;
+            this.merged = merged;
+            this.overruns = overruns;
+            this.bytes = bytes;
+            this.listener_nanos = listener_nanos;
+            this.connects = connects;
+            this.disconnects = disconnects;
+            this.connected_nanos = connected_nanos;
+        }
+
+        /** @return Channel name and request, or "Total" */
+        public String getName()
+        {
+            return name;
+        }
+
+        /** @return Number of updates received from the server */
+        public long getUpdatesReceived()
+        {
+            return received;
+        }
+
+        /** @return Number of updates that were decoded */
+        public long getUpdatesDecoded()
+        {
+            return decoded;
+        }
+
+        /** @return Number of updates dropped by rate limit, decode queue overflow or disconnect */
+        public long getUpdatesDropped()
+        {
+            return dropped;
+        }
+
+        /** @return Number of values replaced by a newer value before they were sent,
+         *          with the LATEST policy, <code>latest=true</code> or in image mode
+         */
+        public long getUpdatesMerged()
+        {
+            return merged;
+        }
+
+        /** @return Number of updates for which the server reported overruns */
+        public long getOverruns()
+        {
+            return overruns;
+        }
+
+        /** @return Total time spent decoding in nanoseconds */
+        public long getDecodeNanos()
+        {
+            return decode_nanos;
+        }
+
+        /** @return Average decode time in microseconds */
+        public double getMeanDecodeMicros()
+        {
+            return decoded > 0 ? decode_nanos / 1e3 / decoded : 0.0;
+        }
+
+        /** @return Estimated number of bytes received */
+        public long getBytesReceived()
+        {
+            return bytes;
+        }
+
+        /** @return Estimated number of bytes per received update */
+        public double getBytesPerUpdate()
+        {
+            return received > 0 ? (double) bytes / received : 0.0;
+        }
+
+        /** @return Total time spent in PV listeners in nanoseconds */
+        public long getListenerNanos()
+        {
+            return listener_nanos;
+        }
+
+        /** @return Number of connections */
+        public long getConnects()
+        {
+            return connects;
+        }
+
+        /** @return Number of disconnects */
+        public long getDisconnects()
+        {
+            return disconnects;
+        }
+
+        /** @return Seconds connected. For totals, the sum over all channels */
+        public double getSecondsConnected()
+        {
+            return connected_nanos / 1e9;
+        }
+
+        /** @return Debug representation */
+        @Override
+        public String toString()
+        {
+            return String.format("%s: %d received, %d decoded (%.1f us avg), %d dropped, %d merged, %d overruns, %.0f bytes/update, " +
+                                 "%.3f s in listeners, %d connects, %d disconnects, %.1f s connected",
+                                 name, received, decoded, getMeanDecodeMicros(), dropped, merged, overruns, getBytesPerUpdate(),
+                                 listener_nanos / 1e9, connects, disconnects, getSecondsConnected());
+        }
+    }
+
+    /** Totals */
+    final ChannelMetrics total = new ChannelMetrics(null);
+
+    private final PVA_Context context;
+
+    /** @param context Context that has the channels */
+    PVA_Metrics(final PVA_Context context)
+    {
+        this.context = context;
+    }
+
+    @Override
+    public Snapshot getTotal()
+    {
+        long current_connections = 0;
+        for (SharedChannel channel : context.getChannels())
+            current_connections += channel.getMetrics().getCurrentConnectionNanos();
+        return total.snapshot("Total", current_connections);
+    }
+
+    @Override
+    public List<Snapshot> getChannels()
+    {
+        final List<SharedChannel> channels = context.getChannels();
+        final List<Snapshot> result = new ArrayList<>(channels.size());
+        for (SharedChannel channel : channels)
+            result.add(channel.getMetrics().snapshot(channel.getKey()));
+        return result;
+    }
+
+    @Override
+    public long getCoalescedWrites()
+    {
+        return CoalescingWriter.total_coalesced.sum();
+    }
+
+    @Override
+    public long getArrayPoolHits()
+    {
+        return ArrayPool.getHits();
+    }
+
+    @Override
+    public long getArrayPoolMisses()
+    {
+        return ArrayPool.getMisses();
+    }
+
+    @Override
+    public long getArrayPoolReleases()
+    {
+        return ArrayPool.getReleases();
+    }
+
+    @Override
+    public long getArrayPoolDiscards()
+    {
+        return ArrayPool.getDiscards();
+    }
+
+    @Override
+    public long getArrayPoolFreeBytes()
+    {
+        return ArrayPool.getFreeBytes();
+    }
+}
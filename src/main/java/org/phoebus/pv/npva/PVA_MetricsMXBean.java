@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.List;
+
+/** JMX interface for {@link PVA_Metrics}
+ *  @author Kay Kasemir
+ */
+public interface PVA_MetricsMXBean
+{
+    /** @return Totals for all channels, including closed ones */
+    public PVA_Metrics.Snapshot getTotal();
+
+    /** @return Metrics for each open channel */
+    public List<PVA_Metrics.Snapshot> getChannels();
+
+    /** @return Number of writes replaced by a later value, for PVs with <code>coalesce=true</code> */
+    public long getCoalescedWrites();
+
+    /** @return Number of arrays re-used from the {@link ArrayPool} */
+    public long getArrayPoolHits();
+
+    /** @return Number of arrays that the {@link ArrayPool} had to allocate */
+    public long getArrayPoolMisses();
+
+    /** @return Number of arrays released back to the {@link ArrayPool} */
+    public long getArrayPoolReleases();
+
+    /** @return Number of released arrays dropped because the {@link ArrayPool} was full */
+    public long getArrayPoolDiscards();
+
+    /** @return Bytes held in free arrays of the {@link ArrayPool} */
+    public long getArrayPoolFreeBytes();
+}
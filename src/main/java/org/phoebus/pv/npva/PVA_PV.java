@@ -7,28 +7,56 @@
  ******************************************************************************/
 package org.phoebus.pv.npva;
 
-import java.util.BitSet;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 
-import org.epics.pva.client.ClientChannelState;
 import org.epics.pva.client.PVAChannel;
 import org.epics.pva.data.PVAStructure;
+import org.epics.vtype.VImage;
 import org.epics.vtype.VType;
 import org.phoebus.pv.PV;
 
 /** PV Access {@link PV}
+ *
+ *  <p>PVs for the same channel and read request
+ *  share one {@link SharedChannel}.
+ *
+ *  <p>Values sent to listeners on the PVAClient thread,
+ *  i.e. without decode executor or with <code>pipeline=true</code>,
+ *  may wrap received arrays that the next update overwrites.
+ *  Listeners that keep such a value beyond the next update must copy its data.
+ *  Values sent from other threads have their own arrays.
+ *
+ *  <p>When the {@link ArrayPool} is enabled, the arrays of values
+ *  received from the PV are only returned to the pool
+ *  once the application calls {@link #release(VType)} for the value.
+ *  Values that are not released are garbage collected.
+ *
+ *  <p>With <code>coalesce=true</code> in the name,
+ *  writes are handled by a {@link CoalescingWriter}.
+ *
  *  @author Kay Kasemir
  */
 @SuppressWarnings("nls")
 public class PVA_PV extends PV
 {
+    private final SharedChannel shared;
     private final PVAChannel channel;
     final PVNameHelper name_helper;
 
+    /** Writer for coalesced writes, <code>null</code> to write each value */
+    private final CoalescingWriter writer;
+
+    /** Lease of the current value's pooled array, may hold <code>null</code> */
+    private final AtomicReference<ArrayPool.Lease> lease = new AtomicReference<>();
+
+    /** Statistics of the current value, <code>null</code> if none */
+    private volatile ImageStatistics statistics = null;
+
     public PVA_PV(final String name, final String base_name) throws Exception
     {
         super(name);
@@ -36,126 +64,211 @@ public class PVA_PV extends PV
         // Analyze base_name, determine channel and request
         name_helper = PVNameHelper.forName(base_name);
         logger.log(Level.FINE, () -> "PVA '" + base_name + "' -> " + name_helper);
-        channel = PVA_Context.getInstance().getClient().getChannel(name_helper.getChannel(), this::channelStateChanged);
+        shared = PVA_Context.getInstance().getChannel(name_helper, this);
+        channel = shared.getChannel();
+        writer = name_helper.isCoalescingWrites()
+               ? new CoalescingWriter(channel, name_helper.getWriteRequest())
+               : null;
     }
 
-    private void channelStateChanged(final PVAChannel channel, final ClientChannelState state)
+    /** @param value Value received by the shared channel
+     *  @param value_lease Lease of the value's pooled array with a reference for this PV,
+     *                     or <code>null</code>
+     *  @param value_statistics {@link ImageStatistics} of the value or <code>null</code>
+     */
+    void handleValue(final VType value, final ArrayPool.Lease value_lease, final ImageStatistics value_statistics)
     {
-        if (state == ClientChannelState.CONNECTED)
-        {   // When connected, subscribe to updates
-            try
-            {
-                channel.subscribe(name_helper.getReadRequest(), this::handleMonitor);
-            }
-            catch (Exception ex)
-            {
-                logger.log(Level.WARNING, "Cannot subscribe to " + channel, ex);
-            }
-        }
-        else if (! isDisconnected(super.read()))
+        statistics = value_statistics;
+        if (value_lease != null)
+            value_lease.addConsumer(this);
+        final ArrayPool.Lease previous = lease.getAndSet(value_lease);
+        notifyListenersOfValue(value);
+        if (previous != null)
+            previous.release();
+    }
+
+    /** Shared channel disconnected */
+    void handleDisconnect()
+    {
+        if (! isDisconnected(super.read()))
         {
             // Was connected, so now disconnected
             notifyListenersOfDisconnect();
         }
+        releaseValue();
     }
 
-    private void handleMonitor(final PVAChannel channel,
-                               final BitSet changes,
-                               final BitSet overruns,
-                               final PVAStructure data)
+    /** Drop statistics and release lease of the current value */
+    private void releaseValue()
     {
-        try
-        {
-            final VType value = PVAStructureHelper.getVType(data, name_helper);
-            notifyListenersOfValue(value);
-        }
-        catch (Exception ex)
-        {
-            logger.log(Level.WARNING, "Cannot decode " + channel + " = " + data, ex);
-        }
+        statistics = null;
+        final ArrayPool.Lease previous = lease.getAndSet(null);
+        if (previous != null)
+            previous.release();
     }
 
-    @Override
-    public Future<VType> asyncRead() throws Exception
+    /** Release a value received from this PV
+     *
+     *  <p>When the {@link ArrayPool} is enabled, call once for each value
+     *  received from this PV, via a listener or by reading it,
+     *  when no part of the application uses the value any longer.
+     *  The value's array then returns to the pool once
+     *  all PVs that received it have moved on to a newer value
+     *  and the value has been released for each of them.
+     *  Further calls for the same value are ignored.
+     *
+     *  @param value Value received from this PV
+     */
+    public void release(final VType value)
     {
-        final Future<PVAStructure> data = channel.read(name_helper.getReadRequest());
-        // Wrap into Future that converts PVAStructure into VType
-        return new Future<>()
-        {
-            @Override
-            public boolean cancel(final boolean mayInterruptIfRunning)
-            {
-                return data.cancel(mayInterruptIfRunning);
-            }
+        ArrayPool.release(value, this);
+    }
 
-            @Override
-            public boolean isCancelled()
-            {
-                return data.isCancelled();
-            }
+    /** @param image Image received from this PV
+     *  @return {@link ImageStatistics} of that image if the PV name requested <code>stats=N</code>
+     *          and the image is the PV's current value, otherwise <code>null</code>
+     */
+    public ImageStatistics getImageStatistics(final VImage image)
+    {
+        final ImageStatistics current = statistics;
+        return current != null  &&  current.isFor(image) ? current : null;
+    }
 
-            @Override
-            public boolean isDone()
-            {
-                return data.isDone();
-            }
+    /** @return Number of NTNDArray frames that were skipped
+     *          with <code>latest=true</code> or in image mode
+     *          because a newer frame arrived before they were delivered
+     *  @see SharedChannel
+     */
+    public long getSkippedFrames()
+    {
+        return shared.getSkippedFrames();
+    }
 
-            @Override
-            public VType get() throws InterruptedException, ExecutionException
+    /** @return Number of updates that were dropped
+     *          because of the <code>rate</code> in the PV name
+     *          or because the decode queue overflowed.
+     *          Values that were replaced by a newer value are counted as merged.
+     *  @see SharedChannel
+     */
+    public long getDroppedUpdates()
+    {
+        return shared.getDroppedUpdates();
+    }
+
+    /** @return Number of values that were replaced by a newer value
+     *          before they were sent to the PV,
+     *          with the LATEST policy, <code>latest=true</code> or in image mode.
+     *          Includes skipped frames.
+     *  @see SharedChannel
+     */
+    public long getMergedUpdates()
+    {
+        return shared.getMergedUpdates();
+    }
+
+    /** @return Number of updates for which the server reported overruns,
+     *          i.e. changes that were lost because the monitor queue was full.
+     *          Consider a larger <code>queueSize</code> in the PV name.
+     *  @see SharedChannel
+     */
+    public long getOverruns()
+    {
+        return shared.getOverruns();
+    }
+
+    /** @return Number of writes that were replaced by a later value
+     *          because of <code>coalesce=true</code> in the PV name
+     *  @see CoalescingWriter
+     */
+    public long getCoalescedWrites()
+    {
+        return writer == null ? 0 : writer.getCoalesced();
+    }
+
+    /** @return Metrics of the channel used by this PV,
+     *          shared with other PVs for the same channel and request
+     */
+    public PVA_Metrics.Snapshot getMetrics()
+    {
+        return shared.getMetrics().snapshot(shared.getKey());
+    }
+
+    /** Read value
+     *
+     *  <p>Received data is decoded once,
+     *  on the executor of the {@link PVA_Context}.
+     *
+     *  @return Future for the decoded value
+     */
+    @Override
+    public CompletableFuture<VType> asyncRead() throws Exception
+    {
+        return asyncRead(PVA_Context.getInstance().getExecutor());
+    }
+
+    /** Read value
+     *  @param executor Executor on which the received data is decoded, once
+     *  @return Future for the decoded value
+     */
+    public CompletableFuture<VType> asyncRead(final Executor executor)
+    {
+        final CompletableFuture<PVAStructure> data = channel.read(name_helper.getReadRequest());
+        final CompletableFuture<VType> value = data.thenApplyAsync(received ->
+        {
+            try
             {
-                try
-                {
-                    return PVAStructureHelper.getVType(data.get(), name_helper);
-                }
-                catch (InterruptedException ex)
-                {
-                    throw ex;
-                }
-                catch (Exception ex)
-                {
-                    throw new ExecutionException(ex);
-                }
+                return PVAStructureHelper.getVType(received, name_helper);
             }
-
-            @Override
-            public VType get(final long timeout, final TimeUnit unit)
-                    throws InterruptedException, ExecutionException, TimeoutException
+            catch (Exception ex)
             {
-                try
-                {
-                    return PVAStructureHelper.getVType(data.get(timeout, unit), name_helper);
-                }
-                catch (InterruptedException ex)
-                {
-                    throw ex;
-                }
-                catch (TimeoutException ex)
-                {
-                    throw ex;
-                }
-                catch (Exception ex)
-                {
-                    throw new ExecutionException(ex);
-                }
+                throw new CompletionException(ex);
             }
-        };
+        }, executor);
+        // Cancel read when value is cancelled
+        value.whenComplete((result, error) ->
+        {
+            if (value.isCancelled())
+                data.cancel(true);
+        });
+        return value;
     }
 
     @Override
     public void write(final Object new_value) throws Exception
     {
-        channel.write(name_helper.getWriteRequest(), new_value);
+        if (writer != null)
+            writer.write(new_value);
+        else
+            channel.write(name_helper.getWriteRequest(), new_value);
     }
 
+    /** Write value
+     *
+     *  <p>With <code>coalesce=true</code>, the future completes
+     *  when this value or a later value that replaced it has been written.
+     *
+     *  @param new_value Value to write
+     *  @return Future for the write
+     */
     @Override
     public Future<?> asyncWrite(final Object new_value) throws Exception
     {
+        if (writer != null)
+            return writer.write(new_value);
         return channel.write(name_helper.getWriteRequest(), new_value);
     }
 
     @Override
     protected void close()
     {
-        channel.close();
+        try
+        {
+            PVA_Context.getInstance().releaseChannel(shared, this);
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.WARNING, "Cannot release " + shared, ex);
+        }
+        releaseValue();
     }
 }
@@ -7,6 +7,8 @@
  ******************************************************************************/
 package org.phoebus.pv.npva;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,15 +21,127 @@ import java.util.regex.Pattern;
  *  pva://channel_name/some/structure.element
  *  </pre>
  *
+ *  <p>Options can be added after a '?', separated by '&amp;':
+ *  <pre>
+ *  pva://channel_name?rate=10
+ *  pva://channel_name?request=field(some.structure.element)&amp;rate=10
+ *  pva://channel_name/some/structure.element?rate=10
+ *  </pre>
+ *
+ *  <ul>
+ *  <li><code>request=field(...)</code>: Field to read
+ *  <li><code>rate=N</code>: Deliver at most N updates per second
+ *  <li><code>queueSize=N</code>: Size of the server's monitor queue
+ *  <li><code>pipeline=true</code>: Server only sends as many updates
+ *      as the client acknowledged, queueSize defaults to 4
+ *  <li><code>range=start:end</code>: Only use array elements start to end, inclusive.
+ *      Negative indices count from the end, -1 being the last element.
+ *      <code>end</code> may be omitted to read to the end of the array
+ *  <li><code>serverRange=true</code>: Let the server apply the range
+ *      by adding an IOC array filter <code>{"arr":{"s":start,"e":end}}</code>
+ *      to the channel name
+ *  <li><code>decimate=N</code>: Reduce arrays by a factor of N,
+ *      keeping the minimum and maximum of each N elements
+ *  <li><code>roi=x:y:width:height</code>: Crop images to a region of interest
+ *  <li><code>bin=N</code>: Average each NxN block of image pixels
+ *  <li><code>stride=N</code>: Only keep every Nth image pixel in each direction
+ *  <li><code>stats=N</code>: Compute image statistics with a histogram of N bins,
+ *      N being a power of 2
+ *  <li><code>coalesce=true</code>: While a write is in flight,
+ *      later writes replace each other and only the latest value is written next
+ *  <li><code>latest=true</code>: Values are sent to listeners on another thread,
+ *      and a value that arrives before the previous one was sent replaces it,
+ *      so slow listeners see the latest value instead of a growing backlog.
+ *      Cannot be combined with <code>pipeline</code>
+ *  </ul>
+ *
+ *  <p>Monitor queue options can also be provided
+ *  as part of the request:
+ *  <pre>
+ *  pva://channel_name?request=record[queueSize=10,pipeline=true]field(value)
+ *  </pre>
+ *
+ *  <p>Parsed names are cached, since displays tend to
+ *  create many PVs with the same name.
+ *  Lookups do not lock, so parallel display loads do not block each other.
+ *  The cache keeps two generations of names, each holding up to half the cache size.
+ *  Names are added to the recent generation, and names found in the older generation
+ *  move back to the recent one.
+ *  When the recent generation is full, it becomes the older generation,
+ *  and names that were not used since the previous time are dropped.
+ *  Size of the cache can be set via the system property
+ *  <code>org.phoebus.pv.npva.name_cache_size</code>,
+ *  0 to disable the cache.
+ *
  *  @author Kay Kasemir
  */
 @SuppressWarnings("nls")
 public class PVNameHelper
 {
-    final private static Pattern REQUEST_PATTERN = Pattern.compile("\\?request=field\\((.*)\\)");
-    final private static int REQUEST_FIELD_START = "?request=".length();
+    final private static Pattern REQUEST_PATTERN = Pattern.compile("(?:record\\[(.*?)\\])?field\\((.*)\\)");
+
+    /** Common requests */
+    final private static String FIELD_ALL = "field()",
+                                FIELD_VALUE = "field(value)";
+
+    /** Maximum number of cached names */
+    final private static int CACHE_SIZE = Integer.getInteger("org.phoebus.pv.npva.name_cache_size", 50000);
+
+    /** Recently used names */
+    private static volatile Map<String, PVNameHelper> recent = new ConcurrentHashMap<>();
+
+    /** Names used before the recent ones, dropped when the recent generation is full */
+    private static volatile Map<String, PVNameHelper> older = new ConcurrentHashMap<>();
+
+    /** Maximum number of canonical fields and requests */
+    final private static int CANONICAL_SIZE = 1000;
+
+    /** Canonical fields and requests */
+    final private static Map<String, String> canonical = new ConcurrentHashMap<>();
+
+    static
+    {
+        for (String known : new String[] { "value", FIELD_ALL, FIELD_VALUE })
+            canonical.put(known, known);
+    }
+
+    /** Default queue size for pipeline */
+    final private static int DEFAULT_PIPELINE_QUEUE_SIZE = 4;
+
+    /** Options parsed from the name */
+    private static class Options
+    {
+        double rate = 0.0;
+        int queue_size = 0;
+        boolean pipeline = false;
+        boolean has_range = false;
+        int range_start = 0, range_end = -1;
+        boolean server_range = false;
+        int decimation = 1;
+        boolean has_roi = false;
+        int roi_x = 0, roi_y = 0, roi_width = 0, roi_height = 0;
+        int binning = 1;
+        int stride = 1;
+        int statistics_bins = 0;
+        boolean coalesce = false;
+        boolean latest = false;
+    }
 
     final private String channel, field, read, write;
+    final private double rate;
+    final private int queue_size;
+    final private boolean pipeline;
+    final private boolean has_range;
+    final private int range_start, range_end;
+    final private boolean server_range;
+    final private int decimation;
+    final private boolean has_roi;
+    final private int roi_x, roi_y, roi_width, roi_height;
+    final private int binning;
+    final private int stride;
+    final private int statistics_bins;
+    final private boolean coalesce;
+    final private boolean latest;
 
     /** Create parser
      *
@@ -36,68 +150,334 @@ public class PVNameHelper
      *  @throws Exception on error
      */
     public static PVNameHelper forName(final String pv_name) throws Exception
+    {
+        if (CACHE_SIZE <= 0)
+            return parse(pv_name);
+
+        final Map<String, PVNameHelper> current = recent;
+        PVNameHelper helper = current.get(pv_name);
+        if (helper != null)
+            return helper;
+
+        // Move name from older generation or parse it
+        helper = older.get(pv_name);
+        if (helper == null)
+            helper = parse(pv_name);
+        // Threads that parse the same name at the same time all use the first one added
+        final PVNameHelper existing = current.putIfAbsent(pv_name, helper);
+        if (existing != null)
+            return existing;
+        if (current.size() > CACHE_SIZE / 2)
+            rotate(current);
+        return helper;
+    }
+
+    /** Start a new generation of recently used names
+     *  @param full Recent generation that is full
+     */
+    private static synchronized void rotate(final Map<String, PVNameHelper> full)
+    {
+        // Only rotate once when several threads find the same generation full
+        if (recent != full)
+            return;
+        older = full;
+        recent = new ConcurrentHashMap<>();
+    }
+
+    /** Parse name
+     *
+     *  @param pv_name PV name
+     *  @return {@link PVNameHelper}
+     *  @throws Exception on error
+     */
+    private static PVNameHelper parse(final String pv_name) throws Exception
     {
         // PV name that follow pvget/eget URL syntax can be
         // "pva:///the_name" with 3 '///' to allow for a "pva://host:port/the_name".
         // Strip the 3rd '/'
-        final String name = pv_name.startsWith("/") ? pv_name.substring(1) : pv_name;
-        // Does name include "?request.."?
+        String name = pv_name.startsWith("/") ? pv_name.substring(1) : pv_name;
+        // Does name include "?request=..&rate=.."?
+        final Options options = new Options();
+        String request = null;
         int pos = name.indexOf('?');
         if (pos >= 0)
-            return PVNameHelper.forNameWithRequest(name.substring(0, pos), name.substring(pos));
+        {
+            for (String option : name.substring(pos+1).split("&"))
+            {
+                final int sep = option.indexOf('=');
+                final String key = sep < 0 ? option : option.substring(0, sep);
+                final String value = sep < 0 ? "" : option.substring(sep+1);
+                switch (key)
+                {
+                case "request":
+                    request = value;
+                    break;
+                case "rate":
+                    options.rate = parsePositive(option, value);
+                    break;
+                case "range":
+                    parseRange(options, option, value);
+                    break;
+                case "serverRange":
+                    options.server_range = parseBoolean(option, value);
+                    break;
+                case "decimate":
+                    options.decimation = parsePositiveInteger(option, value);
+                    break;
+                case "roi":
+                    parseROI(options, option, value);
+                    break;
+                case "bin":
+                    options.binning = parsePositiveInteger(option, value);
+                    break;
+                case "stride":
+                    options.stride = parsePositiveInteger(option, value);
+                    break;
+                case "stats":
+                    options.statistics_bins = parsePositiveInteger(option, value);
+                    if (Integer.bitCount(options.statistics_bins) != 1  ||  options.statistics_bins > 65536)
+                        throw new Exception("Expect power of 2 up to 65536 for option \"" + option + "\"");
+                    break;
+                case "coalesce":
+                    options.coalesce = parseBoolean(option, value);
+                    break;
+                case "latest":
+                    options.latest = parseBoolean(option, value);
+                    break;
+                default:
+                    if (! parseRecordOption(options, option, key, value))
+                        throw new Exception("Unknown option \"" + option + "\" in \"" + pv_name + "\"");
+                }
+            }
+            name = name.substring(0, pos);
+        }
+        if (request != null)
+            return PVNameHelper.forNameWithRequest(name, request, options);
         // Does name include "/some/path"?
         pos = name.indexOf('/');
         if (pos >= 0)
-            return PVNameHelper.forNameWithPath(name.substring(0, pos), name.substring(pos+1));
+            return PVNameHelper.forNameWithPath(name.substring(0, pos), name.substring(pos+1), options);
         // Plain channel name
-        return new PVNameHelper(name, "value", "field()", "field(value)");
+        return new PVNameHelper(name, "value", FIELD_ALL, FIELD_VALUE, options);
+    }
+
+    /** @param options Options to update
+     *  @param option "key=value"
+     *  @param key Key of the option
+     *  @param value Value of the option
+     *  @return <code>true</code> if option was a monitor queue option
+     *  @throws Exception on error
+     */
+    private static boolean parseRecordOption(final Options options, final String option,
+                                             final String key, final String value) throws Exception
+    {
+        switch (key)
+        {
+        case "queueSize":
+            options.queue_size = parsePositiveInteger(option, value);
+            return true;
+        case "pipeline":
+            options.pipeline = parseBoolean(option, value);
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /** @param options Options to update
+     *  @param option "range=start:end"
+     *  @param value "start:end"
+     *  @throws Exception on error
+     */
+    private static void parseRange(final Options options, final String option, final String value) throws Exception
+    {
+        final int sep = value.indexOf(':');
+        try
+        {
+            if (sep < 0)
+                throw new NumberFormatException();
+            options.range_start = Integer.parseInt(value.substring(0, sep).trim());
+            final String end = value.substring(sep+1).trim();
+            options.range_end = end.isEmpty() ? -1 : Integer.parseInt(end);
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new Exception("Expect start:end for option \"" + option + "\"");
+        }
+        options.has_range = true;
+    }
+
+    /** @param options Options to update
+     *  @param option "roi=x:y:width:height"
+     *  @param value "x:y:width:height"
+     *  @throws Exception on error
+     */
+    private static void parseROI(final Options options, final String option, final String value) throws Exception
+    {
+        final String[] items = value.split(":");
+        try
+        {
+            if (items.length != 4)
+                throw new NumberFormatException();
+            options.roi_x = Integer.parseInt(items[0].trim());
+            options.roi_y = Integer.parseInt(items[1].trim());
+            options.roi_width = Integer.parseInt(items[2].trim());
+            options.roi_height = Integer.parseInt(items[3].trim());
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new Exception("Expect x:y:width:height for option \"" + option + "\"");
+        }
+        if (options.roi_x < 0  ||  options.roi_y < 0  ||  options.roi_width <= 0  ||  options.roi_height <= 0)
+            throw new Exception("Expect positive x:y:width:height for option \"" + option + "\"");
+        options.has_roi = true;
+    }
+
+    /** @param option "key=value"
+     *  @param value Value of the option
+     *  @return true or false
+     *  @throws Exception on error
+     */
+    private static boolean parseBoolean(final String option, final String value) throws Exception
+    {
+        if (! (value.equals("true")  ||  value.equals("false")))
+            throw new Exception("Expect true or false for option \"" + option + "\"");
+        return Boolean.parseBoolean(value);
+    }
+
+    /** @param option "key=value"
+     *  @param value Value of the option
+     *  @return Positive integer
+     *  @throws Exception on error
+     */
+    private static int parsePositiveInteger(final String option, final String value) throws Exception
+    {
+        final double number = parsePositive(option, value);
+        if (number != (int) number)
+            throw new Exception("Expect integer for option \"" + option + "\"");
+        return (int) number;
+    }
+
+    /** @param option "key=value"
+     *  @param value Value of the option
+     *  @return Positive number
+     *  @throws Exception on error
+     */
+    private static double parsePositive(final String option, final String value) throws Exception
+    {
+        final double number;
+        try
+        {
+            number = Double.parseDouble(value);
+        }
+        catch (NumberFormatException ex)
+        {
+            throw new Exception("Expect number for option \"" + option + "\"");
+        }
+        if (! (number > 0))
+            throw new Exception("Expect positive number for option \"" + option + "\"");
+        return number;
     }
 
     /** @param channel Channel name
-     *  @param request "?request..."
+     *  @param request "field(...)" or "record[...]field(...)"
+     *  @param options Options
      *  @return {@link PVNameHelper}
      *  @throws Exception on error
      */
-    private static PVNameHelper forNameWithRequest(final String channel, final String request) throws Exception
+    private static PVNameHelper forNameWithRequest(final String channel, final String request, final Options options) throws Exception
     {
         final Matcher matcher = REQUEST_PATTERN.matcher(request);
         if (! matcher.matches())
-            throw new Exception("Expect ?request=field(...) but got \"" + request + "\"");
-        String field = matcher.group(1);
+            throw new Exception("Expect ?request=field(...) but got \"?request=" + request + "\"");
+        if (matcher.group(1) != null)
+            for (String option : matcher.group(1).split(","))
+            {
+                final int sep = option.indexOf('=');
+                if (sep < 0  ||  ! parseRecordOption(options, option, option.substring(0, sep), option.substring(sep+1)))
+                    throw new Exception("Unknown record option \"" + option + "\" in \"?request=" + request + "\"");
+            }
+        String field = matcher.group(2);
         final String write;
         if (field.isEmpty())
         {
             field = "value";
-            write = "field(value)";
+            write = FIELD_VALUE;
         }
         else
-            write = "field(" + field + ".value)";
-        return new PVNameHelper(channel, field, request.substring(REQUEST_FIELD_START), write);
+            write = canonical("field(" + field + ".value)");
+        return new PVNameHelper(channel, canonical(field), canonical("field(" + matcher.group(2) + ")"), write, options);
     }
 
     /** @param channel Channel name
      *  @param path "to/some/element" (without initial '/')
+     *  @param options Options
      *  @return {@link PVNameHelper}
      *  @throws Exception on error
      */
-    private static PVNameHelper forNameWithPath(final String channel, final String path) throws Exception
+    private static PVNameHelper forNameWithPath(final String channel, final String path, final Options options) throws Exception
     {
         final String field = path.replace('/', '.');
         final String write = field.isEmpty()
-                ? "field(value)"
-                : "field(" + field + ".value)";
-        return new PVNameHelper(channel, field, "field(" + field + ")",  write);
+                ? FIELD_VALUE
+                : canonical("field(" + field + ".value)");
+        return new PVNameHelper(channel, canonical(field), canonical("field(" + field + ")"),  write, options);
+    }
+
+    /** @param text Field or request
+     *  @return Canonical instance, shared by all names with that field or request,
+     *          or the text itself once there are too many different ones
+     */
+    private static String canonical(final String text)
+    {
+        final String known = canonical.get(text);
+        if (known != null)
+            return known;
+        if (canonical.size() >= CANONICAL_SIZE)
+            return text;
+        final String existing = canonical.putIfAbsent(text, text);
+        return existing != null ? existing : text;
     }
 
     /** Private to enforce use of <code>forName</code> */
-    private PVNameHelper(final String channel, final String field, final String read, final String write) throws Exception
+    private PVNameHelper(final String channel, final String field, final String read, final String write,
+                         final Options options) throws Exception
     {
         if (channel.isEmpty())
             throw new Exception("Empty channel name");
-        this.channel = channel;
+        if (options.server_range  &&  ! options.has_range)
+            throw new Exception("Option serverRange requires a range");
+        if (options.latest  &&  options.pipeline)
+            throw new Exception("Option latest cannot be combined with pipeline");
+        if (options.server_range)
+            this.channel = channel + (channel.indexOf('.') < 0 ? "." : "") +
+                           "{\"arr\":{\"s\":" + options.range_start + ",\"e\":" + options.range_end + "}}";
+        else
+            this.channel = channel;
         this.field = field;
         this.read = read;
         this.write = write;
+        this.rate = options.rate;
+        this.pipeline = options.pipeline;
+        if (pipeline  &&  options.queue_size <= 0)
+            queue_size = DEFAULT_PIPELINE_QUEUE_SIZE;
+        else
+            queue_size = options.queue_size;
+        has_range = options.has_range;
+        range_start = options.range_start;
+        range_end = options.range_end;
+        server_range = options.server_range;
+        decimation = options.decimation;
+        has_roi = options.has_roi;
+        roi_x = options.roi_x;
+        roi_y = options.roi_y;
+        roi_width = options.roi_width;
+        roi_height = options.roi_height;
+        binning = options.binning;
+        stride = options.stride;
+        statistics_bins = options.statistics_bins;
+        coalesce = options.coalesce;
+        latest = options.latest;
     }
 
     /** @return Channel name */
@@ -124,6 +504,114 @@ public class PVNameHelper
         return write;
     }
 
+    /** @return Maximum number of updates per second, 0 for no limit */
+    public double getRate()
+    {
+        return rate;
+    }
+
+    /** @return Size of the server's monitor queue, 0 for server default */
+    public int getQueueSize()
+    {
+        return queue_size;
+    }
+
+    /** @return Use pipeline, i.e. flow control, for the monitor? */
+    public boolean isPipeline()
+    {
+        return pipeline;
+    }
+
+    /** @return Does the name request an array range? */
+    public boolean hasRange()
+    {
+        return has_range;
+    }
+
+    /** @return First array index of the range, negative to count from the end */
+    public int getRangeStart()
+    {
+        return range_start;
+    }
+
+    /** @return Last array index of the range, inclusive, negative to count from the end */
+    public int getRangeEnd()
+    {
+        return range_end;
+    }
+
+    /** @return Is the range applied by the server? */
+    public boolean isServerRange()
+    {
+        return server_range;
+    }
+
+    /** @return Array decimation factor, 1 for none */
+    public int getDecimation()
+    {
+        return decimation;
+    }
+
+    /** @return Does the name request an image region of interest? */
+    public boolean hasROI()
+    {
+        return has_roi;
+    }
+
+    /** @return Left edge of the image region of interest */
+    public int getROIX()
+    {
+        return roi_x;
+    }
+
+    /** @return Top edge of the image region of interest */
+    public int getROIY()
+    {
+        return roi_y;
+    }
+
+    /** @return Width of the image region of interest */
+    public int getROIWidth()
+    {
+        return roi_width;
+    }
+
+    /** @return Height of the image region of interest */
+    public int getROIHeight()
+    {
+        return roi_height;
+    }
+
+    /** @return Image binning, 1 for none */
+    public int getBinning()
+    {
+        return binning;
+    }
+
+    /** @return Image stride, 1 for every pixel */
+    public int getStride()
+    {
+        return stride;
+    }
+
+    /** @return Number of histogram bins for image statistics, 0 for no statistics */
+    public int getStatisticsBins()
+    {
+        return statistics_bins;
+    }
+
+    /** @return Coalesce writes, latest value wins? */
+    public boolean isCoalescingWrites()
+    {
+        return coalesce;
+    }
+
+    /** @return Only send the latest value to slow listeners? */
+    public boolean isLatest()
+    {
+        return latest;
+    }
+
     /** @return Debug representation */
     @Override
     public String toString()
@@ -131,6 +619,17 @@ public class PVNameHelper
         return "Channel '" + channel +
                 "', field '" + field +
                 "', read request '" + read +
-                "', write request '" + write + "'";
+                "', write request '" + write + "'" +
+                (rate > 0 ? ", rate " + rate : "") +
+                (queue_size > 0 ? ", queue size " + queue_size : "") +
+                (pipeline ? ", pipeline" : "") +
+                (has_range ? ", range " + range_start + ":" + range_end + (server_range ? " on server" : "") : "") +
+                (decimation > 1 ? ", decimate " + decimation : "") +
+                (has_roi ? ", roi " + roi_x + ":" + roi_y + ":" + roi_width + ":" + roi_height : "") +
+                (binning > 1 ? ", bin " + binning : "") +
+                (stride > 1 ? ", stride " + stride : "") +
+                (statistics_bins > 0 ? ", stats " + statistics_bins : "") +
+                (coalesce ? ", coalesce writes" : "") +
+                (latest ? ", latest" : "");
     }
 }
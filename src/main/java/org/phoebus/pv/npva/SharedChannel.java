@@ -0,0 +1,586 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.epics.pva.client.ClientChannelState;
+import org.epics.pva.client.PVAChannel;
+import org.epics.pva.client.PVAClient;
+import org.epics.pva.data.PVAStructure;
+import org.epics.vtype.VType;
+
+/** Channel shared by all {@link PVA_PV}s for the same channel and read request
+ *
+ *  <p>Holds one {@link PVAChannel} and one subscription.
+ *  Each update is decoded once, and the value is sent to all PVs.
+ *  The {@link PVA_Context} keeps a reference count via the list of PVs.
+ *
+ *  <p>Updates are always decoded on the PVAClient thread,
+ *  while the PVAClient is not modifying the structure of the subscription.
+ *  When values are sent to the PVs on that thread as well,
+ *  they may wrap the received arrays.
+ *  When values are sent from another thread, after the PVAClient may already
+ *  have decoded the next update into the same structure,
+ *  the decode plan copies received arrays, so each value remains stable,
+ *  see {@link DecodePlan} for the ownership of arrays.
+ *
+ *  <p>Decode executor:
+ *  When the {@link PVA_Context} provides a {@link StripedExecutor},
+ *  the PVs are notified on the worker of this channel's ordered queue,
+ *  so a slow listener does not stall other channels that share the TCP connection.
+ *  With the default overflow policy LATEST, a value that arrives
+ *  while the previous value is still waiting to be sent replaces it,
+ *  so there is at most one pending value per channel.
+ *  With the other policies, each value is queued,
+ *  and values that overflow the queue are dropped.
+ *
+ *  <p>Latest value:
+ *  With <code>latest=true</code> in the PV name, values are handled like with the LATEST policy,
+ *  also without decode executor, in which case they are sent to the PVs
+ *  on the executor of the {@link PVA_Context}.
+ *  A value that arrives before the pending value has been sent replaces it,
+ *  so a slow listener sees the latest value instead of a growing backlog.
+ *  The pending value is decoded, with copies of the received arrays,
+ *  so replacing it does not copy again.
+ *
+ *  <p>Image mode:
+ *  When the system property <code>org.phoebus.pv.npva.coalesce_images</code>
+ *  is set to <code>true</code>, this applies to all NTNDArray channels
+ *  that are not pipelined, as if their names requested <code>latest=true</code>.
+ *
+ *  <p>Rate limit:
+ *  When the PV name requests a <code>rate</code>,
+ *  at most that many updates per second are decoded and sent.
+ *  Updates that arrive too soon after the previous one are dropped
+ *  before they are decoded, only their changes are recorded
+ *  for decoding the next update.
+ *  When updates have been dropped and no further update arrives,
+ *  the channel is read at the end of the period,
+ *  so PVs end up with the most recent value.
+ *
+ *  <p>Array pool:
+ *  The channel claims the {@link ArrayPool.Lease} of each decoded value,
+ *  holds one reference for its last value and adds one for each PV that receives it.
+ *  Channel and PVs release their reference when the next value arrives.
+ *  The array is only re-used once the application also released the value
+ *  via each PV that received it, see {@link PVA_PV#release(VType)}.
+ *
+ *  <p>Flow control:
+ *  With the <code>pipeline</code> option, the server only sends
+ *  as many updates as the client has acknowledged.
+ *  The PVAClient acknowledges an update once <code>handleMonitor</code>
+ *  returns, so updates are then decoded and sent to the PVs
+ *  on the PVAClient thread, without image mode coalescing,
+ *  and a slow PV listener throttles the server.
+ *  Pipelined channels therefore bypass the decode executor.
+ *  Overruns reported by the server are counted
+ *  to help with tuning the <code>queueSize</code>.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+class SharedChannel
+{
+    private static final Logger logger = Logger.getLogger(SharedChannel.class.getPackageName());
+
+    /** Coalesce NTNDArray updates? */
+    private static final boolean COALESCE_IMAGES = Boolean.getBoolean("org.phoebus.pv.npva.coalesce_images");
+
+    /** Decoded value to be sent to the PVs */
+    private static class Delivery
+    {
+        final VType value;
+        final ArrayPool.Lease lease;
+        final ImageStatistics statistics;
+        final boolean image;
+
+        /** @param value Decoded value
+         *  @param lease Claimed lease of the value, may be <code>null</code>
+         *  @param statistics {@link ImageStatistics} of the value or <code>null</code>
+         *  @param image Is the value an image?
+         */
+        Delivery(final VType value, final ArrayPool.Lease lease, final ImageStatistics statistics, final boolean image)
+        {
+            this.value = value;
+            this.lease = lease;
+            this.statistics = statistics;
+            this.image = image;
+        }
+
+        /** Release the value when it will not be sent */
+        void discard()
+        {
+            if (lease != null)
+                lease.release();
+        }
+    }
+
+    /** Key in the {@link PVA_Context} */
+    private final String key;
+
+    private final PVNameHelper name_helper;
+
+    private final PVAChannel channel;
+
+    /** PVs that use this channel. SYNC on PVA_Context's map of channels */
+    private final List<PVA_PV> pvs = new CopyOnWriteArrayList<>();
+
+    /** Decode plan for the structure received by the subscription. Only used on the PVAClient thread */
+    private DecodePlan plan = null;
+
+    /** Rate limit: Changes of dropped updates, to be decoded with the next update. Only used on the PVAClient thread */
+    private final BitSet dropped_changes = new BitSet();
+
+    /** Lock for the following */
+    private final Object update_lock = new Object();
+
+    /** Latest value waiting to be sent to the PVs, <code>null</code> if none. SYNC on update_lock */
+    private Delivery pending = null;
+
+    /** Rate limit: Time of last delivered or read update. SYNC on update_lock */
+    private long last_delivery;
+
+    /** Rate limit: Has an update been dropped since then? SYNC on update_lock */
+    private boolean rate_dropped = false;
+
+    /** Rate limit: Is a check at the end of the period scheduled? SYNC on update_lock */
+    private boolean rate_check = false;
+
+    /** Last value sent to PVs, <code>null</code> when disconnected. SYNC on this */
+    private VType last_value = null;
+
+    /** Lease of the last value's pooled array, may be <code>null</code>. SYNC on this */
+    private ArrayPool.Lease last_lease = null;
+
+    /** Statistics of the last value if it's an image with <code>stats=N</code>, may be <code>null</code>. SYNC on this */
+    private ImageStatistics last_statistics = null;
+
+    /** Image mode: Number of frames that were skipped */
+    private final AtomicLong skipped_frames = new AtomicLong();
+
+    /** Rate limit: Minimum period between updates in nanoseconds, 0 for no limit */
+    private final long min_period;
+
+    /** Counters */
+    private final ChannelMetrics metrics;
+
+    /** Decode executor: Ordered queue, <code>null</code> to send values on PVAClient thread */
+    private final StripedExecutor.Queue queue;
+
+    /** Decode executor: Replace a pending value with the latest one? */
+    private final boolean coalesce;
+
+    /** Has channel been closed? */
+    private volatile boolean closed = false;
+
+    /** @param client {@link PVAClient}
+     *  @param key Key in the {@link PVA_Context}
+     *  @param name_helper Channel name and read request
+     *  @param decoder {@link StripedExecutor} for sending values, <code>null</code> to send on the PVAClient thread
+     *  @param total Metrics totals
+     */
+    SharedChannel(final PVAClient client, final String key, final PVNameHelper name_helper,
+                  final StripedExecutor decoder, final ChannelMetrics total)
+    {
+        this.key = key;
+        this.name_helper = name_helper;
+        metrics = new ChannelMetrics(total);
+        queue = (decoder == null  ||  name_helper.isPipeline()) ? null : decoder.createQueue(key);
+        coalesce = queue != null  &&  decoder.getOverflow() == StripedExecutor.Overflow.LATEST;
+        final double rate = name_helper.getRate();
+        min_period = rate > 0 ? Math.round(1e9 / rate) : 0;
+        last_delivery = System.nanoTime() - min_period;
+        channel = client.getChannel(name_helper.getChannel(), this::channelStateChanged);
+    }
+
+    /** @return Key in the {@link PVA_Context} */
+    String getKey()
+    {
+        return key;
+    }
+
+    /** @return {@link PVAChannel} */
+    PVAChannel getChannel()
+    {
+        return channel;
+    }
+
+    /** @param pv PV that uses this channel. Caller must SYNC on PVA_Context's map of channels */
+    void addPV(final PVA_PV pv)
+    {
+        pvs.add(pv);
+    }
+
+    /** @param pv PV that no longer uses this channel. Caller must SYNC on PVA_Context's map of channels
+     *  @return Remaining number of PVs
+     */
+    int removePV(final PVA_PV pv)
+    {
+        pvs.remove(pv);
+        return pvs.size();
+    }
+
+    /** Send last value to a newly added PV
+     *  @param pv PV
+     */
+    synchronized void sendLastValue(final PVA_PV pv)
+    {
+        if (last_value != null)
+        {
+            if (last_lease != null)
+                last_lease.retain();
+            pv.handleValue(last_value, last_lease, last_statistics);
+        }
+    }
+
+    private void channelStateChanged(final PVAChannel channel, final ClientChannelState state)
+    {
+        if (state == ClientChannelState.CONNECTED)
+        {   // When connected, subscribe to updates
+            metrics.connected();
+            try
+            {
+                if (name_helper.isPipeline())
+                    channel.subscribe(name_helper.getReadRequest(), name_helper.getQueueSize(), this::handleMonitor);
+                else if (name_helper.getQueueSize() > 0)
+                    channel.subscribe("record[queueSize=" + name_helper.getQueueSize() + "]" + name_helper.getReadRequest(), this::handleMonitor);
+                else
+                    channel.subscribe(name_helper.getReadRequest(), this::handleMonitor);
+            }
+            catch (Exception ex)
+            {
+                logger.log(Level.WARNING, "Cannot subscribe to " + channel, ex);
+            }
+        }
+        else
+        {
+            metrics.disconnected();
+            synchronized (this)
+            {   // Pending and queued values are obsolete
+                final Delivery obsolete;
+                synchronized (update_lock)
+                {
+                    obsolete = pending;
+                    pending = null;
+                    rate_dropped = false;
+                }
+                if (obsolete != null)
+                {
+                    metrics.dropped(1);
+                    obsolete.discard();
+                }
+                if (queue != null)
+                    metrics.dropped(queue.replace(this::sendDisconnect));
+                else
+                    sendDisconnect();
+            }
+        }
+    }
+
+    /** Mark PVs as disconnected */
+    private synchronized void sendDisconnect()
+    {
+        releaseLastValue();
+        for (PVA_PV pv : pvs)
+            pv.handleDisconnect();
+    }
+
+    private void handleMonitor(final PVAChannel channel,
+                               final BitSet changes,
+                               final BitSet overruns,
+                               final PVAStructure data)
+    {
+        metrics.received(data);
+        if (! overruns.isEmpty())
+        {
+            metrics.overrun();
+            logger.log(Level.FINE, () -> channel.getName() + " overruns " + overruns);
+        }
+        try
+        {
+            if (min_period > 0  &&  ! checkRate())
+            {   // Decode changes with the next update
+                dropped_changes.or(changes);
+                return;
+            }
+            final BitSet decode_changes;
+            if (dropped_changes.isEmpty())
+                decode_changes = changes;
+            else
+            {
+                dropped_changes.or(changes);
+                decode_changes = dropped_changes;
+            }
+
+            final long start = System.nanoTime();
+            DecodePlan current = plan;
+            if (current == null  ||  ! current.isFor(data))
+                plan = current = compile(data);
+            final VType value = current.decode(decode_changes);
+            dropped_changes.clear();
+            metrics.decoded(System.nanoTime() - start);
+            deliver(new Delivery(value, ArrayPool.lease(value), current.getStatistics(), current.isImage()));
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.WARNING, "Cannot decode " + channel + " = " + data, ex);
+        }
+    }
+
+    /** @param data Structure received by the subscription
+     *  @return Plan that copies received arrays if values are sent from another thread
+     *  @throws Exception on error
+     */
+    private DecodePlan compile(final PVAStructure data) throws Exception
+    {
+        final boolean copy = queue != null  ||  isLatest(false);
+        final DecodePlan compiled = DecodePlan.compile(data, name_helper, copy);
+        // Image mode is only known once the plan identified the image
+        if (! copy  &&  isLatest(compiled.isImage()))
+            return DecodePlan.compile(data, name_helper, true);
+        return compiled;
+    }
+
+    /** @param image Is the value an image?
+     *  @return <code>true</code> if value replaces a pending value
+     */
+    private boolean isLatest(final boolean image)
+    {
+        return coalesce  ||  name_helper.isLatest()  ||
+               (image  &&  COALESCE_IMAGES  &&  ! name_helper.isPipeline());
+    }
+
+    /** Send value to the PVs, now or via queue or executor
+     *  @param delivery Decoded value
+     *  @throws Exception on error
+     */
+    private void deliver(final Delivery delivery) throws Exception
+    {
+        if (isLatest(delivery.image))
+        {
+            final Delivery replaced;
+            synchronized (update_lock)
+            {
+                replaced = pending;
+                pending = delivery;
+                if (replaced == null)
+                {
+                    if (queue != null)
+                        queue.execute(this::sendPending);
+                    else
+                        PVA_Context.getInstance().getExecutor().execute(this::sendPending);
+                }
+            }
+            if (replaced != null)
+            {
+                metrics.merged();
+                if (replaced.image)
+                    skipped_frames.incrementAndGet();
+                replaced.discard();
+            }
+        }
+        else if (queue != null)
+            metrics.dropped(queue.submit(() -> send(delivery)));
+        else
+            send(delivery);
+    }
+
+    /** Send the pending value */
+    private synchronized void sendPending()
+    {
+        final Delivery delivery;
+        synchronized (update_lock)
+        {
+            delivery = pending;
+            pending = null;
+        }
+        if (delivery != null)
+            send(delivery);
+    }
+
+    /** Rate limit: Check if the received update may be decoded now,
+     *  otherwise check at the end of the period if the channel needs to be read.
+     *  @return <code>true</code> if update may be decoded now
+     *  @throws Exception on error
+     */
+    private boolean checkRate() throws Exception
+    {
+        final long now = System.nanoTime();
+        synchronized (update_lock)
+        {
+            final long delay = last_delivery + min_period - now;
+            if (delay <= 0)
+            {
+                last_delivery = now;
+                rate_dropped = false;
+                return true;
+            }
+            metrics.dropped(1);
+            rate_dropped = true;
+            if (! rate_check)
+            {
+                rate_check = true;
+                CompletableFuture.delayedExecutor(delay, TimeUnit.NANOSECONDS, PVA_Context.getInstance().getExecutor())
+                                 .execute(this::checkDropped);
+            }
+            return false;
+        }
+    }
+
+    /** Rate limit: At the end of the period, read the channel
+     *  if updates were dropped and none was decoded since
+     */
+    private void checkDropped()
+    {
+        final long issued;
+        synchronized (update_lock)
+        {
+            rate_check = false;
+            if (! rate_dropped  ||  closed)
+                return;
+            rate_dropped = false;
+            issued = last_delivery = System.nanoTime();
+        }
+        // The subscription's structure may be updated at any time,
+        // so read a structure that only this channel will decode
+        channel.read(name_helper.getReadRequest()).thenAccept(data -> deliverRead(data, issued));
+    }
+
+    /** Rate limit: Send value that was read at the end of the period,
+     *  unless an update has been decoded since the read was issued
+     *  @param data Structure read from the channel
+     *  @param issued Time when read was issued
+     */
+    private void deliverRead(final PVAStructure data, final long issued)
+    {
+        try
+        {
+            final long start = System.nanoTime();
+            final DecodePlan read_plan = DecodePlan.compile(data, name_helper);
+            final VType value = read_plan.decode();
+            metrics.decoded(System.nanoTime() - start);
+            final Delivery delivery = new Delivery(value, ArrayPool.lease(value), read_plan.getStatistics(), read_plan.isImage());
+            synchronized (this)
+            {
+                synchronized (update_lock)
+                {
+                    if (last_delivery != issued)
+                    {
+                        delivery.discard();
+                        return;
+                    }
+                }
+                deliver(delivery);
+            }
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.WARNING, "Cannot decode " + channel + " = " + data, ex);
+        }
+    }
+
+    /** @param delivery Value to send to all PVs */
+    private synchronized void send(final Delivery delivery)
+    {
+        if (closed)
+        {
+            delivery.discard();
+            return;
+        }
+        // Channel keeps the reference of the lease, each PV gets one more
+        final ArrayPool.Lease previous = last_lease;
+        last_value = delivery.value;
+        last_lease = delivery.lease;
+        last_statistics = delivery.statistics;
+        final long start = System.nanoTime();
+        for (PVA_PV pv : pvs)
+        {
+            if (delivery.lease != null)
+                delivery.lease.retain();
+            pv.handleValue(delivery.value, delivery.lease, delivery.statistics);
+        }
+        metrics.notified(System.nanoTime() - start);
+        if (previous != null)
+            previous.release();
+    }
+
+    /** Drop last value and release its lease. Caller must SYNC on this */
+    private void releaseLastValue()
+    {
+        if (last_lease != null)
+            last_lease.release();
+        last_value = null;
+        last_lease = null;
+        last_statistics = null;
+    }
+
+    /** @return Number of NTNDArray frames that were skipped in image mode */
+    long getSkippedFrames()
+    {
+        return skipped_frames.get();
+    }
+
+    /** @return Number of updates that were dropped because of the rate limit,
+     *          decode queue overflow, or because the channel disconnected before they were sent
+     */
+    long getDroppedUpdates()
+    {
+        return metrics.dropped.sum();
+    }
+
+    /** @return Number of values that were replaced by a newer value before they were sent */
+    long getMergedUpdates()
+    {
+        return metrics.merged.sum();
+    }
+
+    /** @return Number of updates for which the server reported overruns */
+    long getOverruns()
+    {
+        return metrics.overruns.sum();
+    }
+
+    /** @return Counters */
+    ChannelMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /** Close the channel */
+    void close()
+    {
+        closed = true;
+        synchronized (this)
+        {
+            releaseLastValue();
+            synchronized (update_lock)
+            {
+                if (pending != null)
+                    pending.discard();
+                pending = null;
+            }
+        }
+        metrics.disconnected();
+        channel.close();
+    }
+
+    /** @return Debug representation */
+    @Override
+    public String toString()
+    {
+        return "Shared channel '" + key + "' used by " + pvs.size() + " PVs";
+    }
+}
@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * Copyright (c) 2019 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package org.phoebus.pv.npva;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/** Executor with a fixed set of worker threads and ordered queues
+ *
+ *  <p>Each queue is assigned to one worker based on a hash of its key,
+ *  and runs its tasks one at a time in the order they were submitted.
+ *  Different queues run in parallel on the workers.
+ *
+ *  <p>Queues are bounded.
+ *  When a queue is full, the {@link Overflow} policy
+ *  determines which submitted tasks are dropped.
+ *  Tasks that hold no data and must not be dropped can be
+ *  added via {@link Queue#execute(Runnable)}.
+ *
+ *  @author Kay Kasemir
+ */
+@SuppressWarnings("nls")
+class StripedExecutor
+{
+    private static final Logger logger = Logger.getLogger(StripedExecutor.class.getPackageName());
+
+    /** What to do when a queue is full */
+    enum Overflow
+    {
+        /** Drop all queued tasks, keep only the newest */
+        LATEST,
+
+        /** Drop the oldest queued task */
+        DROP_OLDEST,
+
+        /** Drop the newly submitted task */
+        DROP_NEWEST
+    }
+
+    /** Ordered, bounded queue of tasks */
+    class Queue
+    {
+        private final ExecutorService worker;
+
+        /** Queued tasks. SYNC on this */
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        /** Has 'runNext' been submitted to the worker? SYNC on this */
+        private boolean scheduled = false;
+
+        private Queue(final ExecutorService worker)
+        {
+            this.worker = worker;
+        }
+
+        /** @param task Task to run after the previously submitted tasks
+         *  @return Number of tasks that were dropped because the queue was full
+         */
+        int submit(final Runnable task)
+        {
+            int dropped = 0;
+            synchronized (this)
+            {
+                if (tasks.size() >= capacity)
+                {
+                    switch (overflow)
+                    {
+                    case LATEST:
+                        dropped = tasks.size();
+                        tasks.clear();
+                        break;
+                    case DROP_OLDEST:
+                        tasks.poll();
+                        dropped = 1;
+                        break;
+                    default:
+                        return 1;
+                    }
+                }
+                tasks.add(task);
+                if (scheduled)
+                    return dropped;
+                scheduled = true;
+            }
+            worker.execute(this::runNext);
+            return dropped;
+        }
+
+        /** @param task Task to run after the previously submitted tasks.
+         *              Not subject to the capacity, never dropped
+         */
+        void execute(final Runnable task)
+        {
+            synchronized (this)
+            {
+                tasks.add(task);
+                if (scheduled)
+                    return;
+                scheduled = true;
+            }
+            worker.execute(this::runNext);
+        }
+
+        /** @return <code>true</code> if no task is queued or running */
+        synchronized boolean isIdle()
+        {
+            return ! scheduled;
+        }
+
+        /** @param task Task to run next, replacing all queued tasks
+         *  @return Number of tasks that were dropped
+         */
+        int replace(final Runnable task)
+        {
+            final int dropped;
+            synchronized (this)
+            {
+                dropped = tasks.size();
+                tasks.clear();
+                tasks.add(task);
+                if (scheduled)
+                    return dropped;
+                scheduled = true;
+            }
+            worker.execute(this::runNext);
+            return dropped;
+        }
+
+        /** Run one task, then re-submit to let other queues of the same worker take a turn */
+        private void runNext()
+        {
+            final Runnable task;
+            synchronized (this)
+            {
+                task = tasks.poll();
+                if (task == null)
+                {
+                    scheduled = false;
+                    return;
+                }
+            }
+            try
+            {
+                task.run();
+            }
+            catch (Throwable ex)
+            {
+                logger.log(Level.WARNING, "Task failed", ex);
+            }
+            synchronized (this)
+            {
+                if (tasks.isEmpty())
+                {
+                    scheduled = false;
+                    return;
+                }
+            }
+            worker.execute(this::runNext);
+        }
+    }
+
+    private final ExecutorService[] workers;
+    private final int capacity;
+    private final Overflow overflow;
+
+    /** @param name Name of the worker threads
+     *  @param threads Number of worker threads
+     *  @param capacity Maximum number of tasks per queue
+     *  @param overflow What to do when a queue is full
+     */
+    StripedExecutor(final String name, final int threads, final int capacity, final Overflow overflow)
+    {
+        if (threads < 1)
+            throw new IllegalArgumentException("Need at least 1 thread, got " + threads);
+        if (capacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be at least 1, got " + capacity);
+        workers = new ExecutorService[threads];
+        for (int i=0; i<threads; ++i)
+        {
+            final String thread_name = name + " " + (i+1);
+            workers[i] = Executors.newSingleThreadExecutor(runnable ->
+            {
+                final Thread thread = new Thread(runnable, thread_name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    /** @return What to do when a queue is full */
+    Overflow getOverflow()
+    {
+        return overflow;
+    }
+
+    /** @param key Key that selects the worker thread
+     *  @return Queue that runs its tasks in order on that worker
+     */
+    Queue createQueue(final String key)
+    {
+        return new Queue(workers[Math.floorMod(key.hashCode(), workers.length)]);
+    }
+
+    /** @return Debug representation */
+    @Override
+    public String toString()
+    {
+        return "StripedExecutor with " + workers.length + " threads, queue capacity " + capacity + ", " + overflow;
+    }
+}